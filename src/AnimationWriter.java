@@ -0,0 +1,286 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.imageio.*;
+import javax.imageio.metadata.*;
+import javax.imageio.stream.*;
+
+/**
+ * Streams the frames of an animation into a single file as they are rendered,
+ * instead of writing every frame to its own image. Frames may be appended in
+ * any order from any thread; a background thread puts them back in order and
+ * appends each one as soon as all the frames before it have arrived.
+ */
+public abstract class AnimationWriter {
+
+    private static final int QUEUE_SIZE = 8; // Frames that may wait for the writer thread before append blocks
+    private static final Entry DONE = new Entry(-1, null); // Tells the writer thread to stop
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+    private Thread writer;
+    private final String filename;
+    private volatile IOException error;
+
+    /**
+     * Opens a writer for the given animation format
+     * @param format "gif" for an animated GIF, or "ppm" for binary PPM frames
+     *        one after another, which encoders such as ffmpeg can read as
+     *        a stream
+     * @param basename name of the animation, used for the file name
+     * @return writer for the animation
+     */
+    public static AnimationWriter open(String format, String basename) throws IOException {
+        AnimationWriter animation;
+        if (format.equals("gif")) {
+            animation = new GifWriter(basename + ".gif");
+        }
+        else if (format.equals("ppm")) {
+            animation = new PpmStreamWriter(basename + ".ppm");
+        }
+        else {
+            throw new IOException("Unknown animation format " + format);
+        }
+        animation.start();
+        return animation;
+    }
+
+    protected AnimationWriter(String _filename) {
+        filename = _filename;
+    }
+
+    /**
+     * Starts the writer thread once the writer is fully constructed
+     */
+    private void start() {
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeFrames();
+            }
+        }, "animation-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Hands a finished frame to the writer. Blocks if the writer has fallen
+     * behind
+     * @param index number of the frame in the animation, starting at 0
+     * @param snapshot copy of the finished frame
+     */
+    public void append(int index, FrameSnapshot snapshot) {
+        try {
+            queue.put(new Entry(index, snapshot));
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for every appended frame to be written and closes the file
+     */
+    public void close() throws IOException {
+        try {
+            queue.put(DONE);
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (error != null) {
+            throw error;
+        }
+        System.out.println("Saved animation to " + filename);
+    }
+
+    /**
+     * Takes frames off the queue and writes out every frame whose
+     * predecessors have all been written. After a write fails the rest of
+     * the frames are still taken off the queue but not written, so append
+     * and close never block on a writer that has stopped
+     */
+    private void writeFrames() {
+        Map<Integer, FrameSnapshot> pending = new HashMap<Integer, FrameSnapshot>();
+        int next = 0;
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                if (entry == DONE) {
+                    break;
+                }
+                pending.put(entry.index, entry.snapshot);
+                FrameSnapshot snapshot;
+                while ((snapshot = pending.remove(next)) != null) {
+                    if (error == null) {
+                        try {
+                            writeFrame(snapshot);
+                        }
+                        catch (IOException e) {
+                            error = e;
+                        }
+                    }
+                    next++;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        try {
+            finishStream();
+        }
+        catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Appends a single frame to the file
+     * @param snapshot frame to append
+     */
+    protected abstract void writeFrame(FrameSnapshot snapshot) throws IOException;
+
+    /**
+     * Finishes and closes the file after the last frame
+     */
+    protected abstract void finishStream() throws IOException;
+
+    /**
+     * A frame waiting in the queue along with its place in the animation
+     */
+    private static class Entry {
+
+        final int index;
+        final FrameSnapshot snapshot;
+
+        Entry(int _index, FrameSnapshot _snapshot) {
+            index = _index;
+            snapshot = _snapshot;
+        }
+
+    }
+
+    /**
+     * Writes frames as binary PPM images back to back in one file
+     */
+    private static class PpmStreamWriter extends AnimationWriter {
+
+        private final OutputStream out;
+        private byte[] bytes = new byte[0];
+
+        PpmStreamWriter(String filename) throws IOException {
+            super(filename);
+            out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+        }
+
+        protected void writeFrame(FrameSnapshot snapshot) throws IOException {
+            int[] pixels = snapshot.getPixels();
+            int size = snapshot.getWidth() * snapshot.getHeight();
+            if (bytes.length < size * 3) {
+                bytes = new byte[size * 3];
+            }
+            int b = 0;
+            for (int i = 0; i < size; i++) {
+                int rgb = pixels[i];
+                bytes[b++] = (byte) (rgb >> 16);
+                bytes[b++] = (byte) (rgb >> 8);
+                bytes[b++] = (byte) rgb;
+            }
+            out.write(("P6\n" + snapshot.getWidth() + " " + snapshot.getHeight() + "\n255\n").getBytes("US-ASCII"));
+            out.write(bytes, 0, b);
+        }
+
+        protected void finishStream() throws IOException {
+            out.close();
+        }
+
+    }
+
+    /**
+     * Writes frames into an animated GIF that loops forever
+     */
+    private static class GifWriter extends AnimationWriter {
+
+        private static final int FRAME_DELAY = 4; // Hundredths of a second between frames
+
+        private final ImageWriter gif;
+        private final ImageOutputStream out;
+
+        GifWriter(String filename) throws IOException {
+            super(filename);
+            gif = ImageIO.getImageWritersByFormatName("gif").next();
+            File file = new File(filename);
+            file.delete();
+            out = ImageIO.createImageOutputStream(file);
+            gif.setOutput(out);
+            gif.prepareWriteSequence(null);
+        }
+
+        protected void writeFrame(FrameSnapshot snapshot) throws IOException {
+            RenderedImageHolder image = new RenderedImageHolder(snapshot);
+            IIOMetadata metadata = gif.getDefaultImageMetadata(image.type, null);
+            String formatName = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+
+            IIOMetadataNode control = child(root, "GraphicControlExtension");
+            control.setAttribute("disposalMethod", "none");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("delayTime", Integer.toString(FRAME_DELAY));
+            control.setAttribute("transparentColorIndex", "0");
+
+            IIOMetadataNode application = new IIOMetadataNode("ApplicationExtension");
+            application.setAttribute("applicationID", "NETSCAPE");
+            application.setAttribute("authenticationCode", "2.0");
+            application.setUserObject(new byte[] { 1, 0, 0 }); // Loop forever
+            child(root, "ApplicationExtensions").appendChild(application);
+
+            metadata.setFromTree(formatName, root);
+            gif.writeToSequence(new IIOImage(image.image, null, metadata), null);
+        }
+
+        protected void finishStream() throws IOException {
+            gif.endWriteSequence();
+            out.close();
+            gif.dispose();
+        }
+
+        /**
+         * Finds the child of a metadata node with the given name, creating it
+         * if it does not exist yet
+         * @param root node to search
+         * @param name name of the child
+         * @return the child node
+         */
+        private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+            for (int i = 0; i < root.getLength(); i++) {
+                if (root.item(i).getNodeName().equalsIgnoreCase(name)) {
+                    return (IIOMetadataNode) root.item(i);
+                }
+            }
+            IIOMetadataNode node = new IIOMetadataNode(name);
+            root.appendChild(node);
+            return node;
+        }
+
+    }
+
+    /**
+     * A snapshot wrapped as an image along with its type
+     */
+    private static class RenderedImageHolder {
+
+        final java.awt.image.BufferedImage image;
+        final ImageTypeSpecifier type;
+
+        RenderedImageHolder(FrameSnapshot snapshot) {
+            image = FrameWriter.toImage(snapshot.getPixels(), snapshot.getWidth(), snapshot.getHeight());
+            type = ImageTypeSpecifier.createFromRenderedImage(image);
+        }
+
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * A pinhole camera that frames draw through in perspective. The view
+ * transform moves points so the camera sits at the origin looking down the
+ * negative z axis, and is composed onto the transform of each shape so that
+ * shapes come out already relative to the camera. Projecting a point then
+ * divides by its distance d in front of the camera,
+ * x' = cx + focal * x / d, y' = cy + focal * y / d, and its depth becomes
+ * 1 / d, which is larger for closer points like depths on an orthographic
+ * frame and changes linearly across the frame, so depths blended across a
+ * triangle are correct in perspective.
+ */
+public class Camera {
+
+    public static final double NEAR = 1; // Closest distance in front of the camera that is drawn
+
+    private final Transform view;
+    private final double focal;
+    private final double centerX, centerY;
+
+    /**
+     * Creates a camera
+     * @param eye x, y, z of the camera
+     * @param aim x, y, z of the point the camera looks at, which ends up in
+     *        the center of the frame
+     * @param _focal distance from the camera to the image plane, in pixels
+     * @param width width of the frame in pixels
+     * @param height height of the frame in pixels
+     */
+    public Camera(double[] eye, double[] aim, double _focal, int width, int height) {
+        view = new Transform();
+        view.lookAt(eye, aim);
+        focal = _focal;
+        centerX = width / 2.0;
+        centerY = height / 2.0;
+    }
+
+    /**
+     * Returns the view transform, which must not be changed
+     * @return transform from the scene to the camera
+     */
+    public Transform getView() {
+        return view;
+    }
+
+    /**
+     * Projects the first n points of a buffer of points relative to the
+     * camera onto the frame. Each projected point keeps its distance in front
+     * of the camera as its homogeneous coordinate, and points closer than
+     * NEAR are left relative to the camera to be clipped
+     * @param src buffer holding the points relative to the camera, laid out
+     *        as x, y, z, w
+     * @param dst buffer to store the projected points in, laid out the same
+     * @param n number of points to project
+     */
+    public void project(double[] src, double[] dst, int n) {
+        int end = n * 4;
+        for (int i = 0; i < end; i += 4) {
+            double x = src[i], y = src[i + 1], z = src[i + 2];
+            double d = -z;
+            if (d >= NEAR) {
+                double s = focal / d;
+                dst[i] = centerX + x * s;
+                dst[i + 1] = centerY + y * s;
+                dst[i + 2] = 1 / d;
+            }
+            else {
+                dst[i] = x;
+                dst[i + 1] = y;
+                dst[i + 2] = z;
+            }
+            dst[i + 3] = d;
+        }
+    }
+
+    /**
+     * Projects one point relative to the camera onto the frame in place, no
+     * matter how close it is, using its homogeneous coordinate as its
+     * distance in front of the camera
+     * @param v buffer holding the point, laid out as x, y, z, distance
+     * @param i offset of the point in the buffer
+     */
+    public void project(double[] v, int i) {
+        double d = v[i + 3];
+        double s = focal / d;
+        v[i] = centerX + v[i] * s;
+        v[i + 1] = centerY + v[i + 1] * s;
+        v[i + 2] = 1 / d;
+    }
+
+    /**
+     * Checks whether anything inside a box relative to the camera could be
+     * drawn on a frame, by testing it against the near plane and the four
+     * planes through the camera and the edges of the frame. Like
+     * Frame.overlaps, anything past -1 may still reach the first row or column
+     * @param bounds minimum x, y, z followed by maximum x, y, z
+     * @param width width of the frame in pixels
+     * @param height height of the frame in pixels
+     * @return false if everything in the box is off the frame
+     */
+    public boolean overlaps(double[] bounds, int width, int height) {
+        if (-bounds[2] < NEAR) {
+            return false; // Entirely behind the near plane
+        }
+        // A point at distance d = -z is past the left edge when focal * x + (cx + 1) * d < 0, so the box is
+        // entirely past it when even its largest value of focal * x - (cx + 1) * z is negative
+        return focal * bounds[3] - (centerX + 1) * bounds[2] > 0
+                && focal * bounds[0] + (width - centerX) * bounds[2] < 0
+                && focal * bounds[4] - (centerY + 1) * bounds[2] > 0
+                && focal * bounds[1] + (height - centerY) * bounds[2] < 0;
+    }
+
+}
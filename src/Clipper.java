@@ -0,0 +1,188 @@
+/**
+ * Clips triangles and lines before they are rasterized. Triangles are
+ * clipped with the Sutherland-Hodgman algorithm, which walks the edges of a
+ * polygon once for each plane, keeping the vertices inside the plane and
+ * adding the points where edges cross it. A triangle is first clipped
+ * against the near plane of the camera while its vertices are still
+ * relative to the camera, then projected and clipped against a rectangle
+ * on the frame. Each vertex carries three attributes, a color or a normal,
+ * which are cut the same way as its position.
+ */
+class Clipper {
+
+    static final int VERTEX_SIZE = 7; // x, y, z, w, then three attributes
+    private static final int MAX_VERTICES = 8; // A triangle gains at most one vertex per plane
+
+    private double[] polygon = new double[MAX_VERTICES * VERTEX_SIZE]; // Vertices of the polygon being clipped
+    private double[] next = new double[MAX_VERTICES * VERTEX_SIZE]; // Vertices left after the current plane
+    private int count; // Number of vertices in the polygon
+
+    /**
+     * Clips a triangle against the near plane of the camera and a rectangle
+     * on the frame
+     * @param m buffer holding the vertices, relative to the camera if there
+     *        is one and on the frame otherwise
+     * @param p0 offset of the first vertex
+     * @param p1 offset of the second vertex
+     * @param p2 offset of the third vertex
+     * @param attributes three values for each vertex in the buffer, or null
+     *        if there are none
+     * @param camera camera the vertices are relative to, or null if there is
+     *        none
+     * @param minX leftmost x-coordinate to keep
+     * @param minY bottommost y-coordinate to keep
+     * @param maxX rightmost x-coordinate to keep
+     * @param maxY topmost y-coordinate to keep
+     * @return number of vertices in the clipped polygon, which is 0 if
+     *         nothing is left
+     */
+    int clip(double[] m, int p0, int p1, int p2, double[] attributes, Camera camera,
+            double minX, double minY, double maxX, double maxY) {
+        count = 0;
+        load(m, p0, attributes, camera);
+        load(m, p1, attributes, camera);
+        load(m, p2, attributes, camera);
+        if (camera != null) {
+            clipPlane(3, 1, -Camera.NEAR);
+            for (int i = 0; i < count; i++) {
+                camera.project(polygon, i * VERTEX_SIZE);
+            }
+        }
+        clipPlane(0, 1, -minX);
+        clipPlane(0, -1, maxX);
+        clipPlane(1, 1, -minY);
+        clipPlane(1, -1, maxY);
+        return count;
+    }
+
+    /**
+     * Copies a vertex of the clipped polygon into a vertex buffer and an
+     * attribute buffer laid out like the ones the rasterizer reads
+     * @param i index of the vertex in the clipped polygon
+     * @param vertices buffer to store x, y, z, w in
+     * @param v index of the vertex in the buffers
+     * @param attributes buffer to store the three attributes in, or null if
+     *        they are not needed
+     */
+    void copyVertex(int i, double[] vertices, int v, double[] attributes) {
+        int src = i * VERTEX_SIZE;
+        System.arraycopy(polygon, src, vertices, v * 4, 4);
+        if (attributes != null) {
+            System.arraycopy(polygon, src + 4, attributes, v * 3, 3);
+        }
+    }
+
+    /**
+     * Cuts off the part of a line relative to the camera that is behind the
+     * near plane and projects what is left
+     * @param m buffer holding the points, relative to the camera
+     * @param p0 offset of the starting point
+     * @param p1 offset of the ending point
+     * @param camera camera the points are relative to
+     * @param line array of 8 to store the two projected points in, laid out
+     *        as x, y, z, w
+     * @return false if the whole line is behind the near plane
+     */
+    boolean clipLine(double[] m, int p0, int p1, Camera camera, double[] line) {
+        double d0 = -m[p0 + 2], d1 = -m[p1 + 2];
+        if (d0 < Camera.NEAR && d1 < Camera.NEAR) {
+            return false;
+        }
+        for (int k = 0; k < 3; k++) {
+            line[k] = m[p0 + k];
+            line[k + 4] = m[p1 + k];
+        }
+        line[3] = d0;
+        line[7] = d1;
+        if (d0 < Camera.NEAR) {
+            cutLine(line, 0, (Camera.NEAR - d0) / (d1 - d0));
+        }
+        else if (d1 < Camera.NEAR) {
+            cutLine(line, 4, (Camera.NEAR - d1) / (d0 - d1));
+        }
+        camera.project(line, 0);
+        camera.project(line, 4);
+        return true;
+    }
+
+    /**
+     * Moves one end of a line towards the other end until it is on the near
+     * plane
+     * @param line both points of the line
+     * @param from offset of the point to move
+     * @param t how far along the line to move it, from 0 to 1
+     */
+    private static void cutLine(double[] line, int from, double t) {
+        int to = 4 - from;
+        for (int k = 0; k < 3; k++) {
+            line[from + k] += (line[to + k] - line[from + k]) * t;
+        }
+        line[from + 3] = Camera.NEAR;
+    }
+
+    /**
+     * Adds a vertex of a triangle to the polygon. Without a camera its w is
+     * kept as is, and with one it becomes the distance in front of the camera
+     * @param m buffer holding the vertices
+     * @param p offset of the vertex
+     * @param attributes three values for each vertex in the buffer, or null
+     * @param camera camera the vertex is relative to, or null
+     */
+    private void load(double[] m, int p, double[] attributes, Camera camera) {
+        int dst = count * VERTEX_SIZE;
+        polygon[dst] = m[p];
+        polygon[dst + 1] = m[p + 1];
+        polygon[dst + 2] = m[p + 2];
+        polygon[dst + 3] = camera == null ? m[p + 3] : -m[p + 2];
+        if (attributes != null) {
+            int q = p / 4 * 3;
+            polygon[dst + 4] = attributes[q];
+            polygon[dst + 5] = attributes[q + 1];
+            polygon[dst + 6] = attributes[q + 2];
+        }
+        count++;
+    }
+
+    /**
+     * Clips the polygon against one plane, keeping the part where
+     * sign * value + offset is at least 0 for the given value of each vertex.
+     * Points where an edge crosses the plane are put exactly on it, so later
+     * planes and the projection never see them on the wrong side
+     * @param index which value of each vertex the plane tests
+     * @param sign 1 to keep values from -offset up, -1 to keep values up to
+     *        offset
+     * @param offset where the plane is
+     */
+    private void clipPlane(int index, double sign, double offset) {
+        if (count == 0) {
+            return;
+        }
+        int n = 0;
+        int previous = (count - 1) * VERTEX_SIZE;
+        double previousDistance = sign * polygon[previous + index] + offset;
+        for (int i = 0; i < count; i++) {
+            int current = i * VERTEX_SIZE;
+            double distance = sign * polygon[current + index] + offset;
+            if ((distance >= 0) != (previousDistance >= 0)) { // The edge crosses the plane
+                double t = previousDistance / (previousDistance - distance);
+                int dst = n * VERTEX_SIZE;
+                for (int k = 0; k < VERTEX_SIZE; k++) {
+                    next[dst + k] = polygon[previous + k] + (polygon[current + k] - polygon[previous + k]) * t;
+                }
+                next[dst + index] = -offset * sign;
+                n++;
+            }
+            if (distance >= 0) {
+                System.arraycopy(polygon, current, next, n * VERTEX_SIZE, VERTEX_SIZE);
+                n++;
+            }
+            previous = current;
+            previousDistance = distance;
+        }
+        double[] temp = polygon;
+        polygon = next;
+        next = temp;
+        count = n < 3 ? 0 : n;
+    }
+
+}
@@ -2,16 +2,19 @@ import java.util.*;
 
 public class Color {
 
-    Random r = new Random();
+    public static final long DEFAULT_SEED = 0;
+    private static final Random r = new Random(DEFAULT_SEED); // Shared by every random color so renders are reproducible
+    private static long seed = DEFAULT_SEED;
+
+    private static final int BOUND_MIN = 0;
+    private static final int BOUND_MAX = 255;
 
     private int red = 0;
     private int green = 0;
     private int blue = 0;
 
     public Color() {
-        red = r.nextInt(255);
-        green = r.nextInt(255);
-        blue = r.nextInt(255);
+        this(randomRGB());
     }
 
     public Color(int _r, int _g, int _b) {
@@ -20,6 +23,16 @@ public class Color {
         blue = _b;
     }
 
+    /**
+     * Creates a color from a packed RGB value
+     * @param rgb packed color, as returned by getRGB()
+     */
+    public Color(int rgb) {
+        red = (rgb >> 16) & 0xFF;
+        green = (rgb >> 8) & 0xFF;
+        blue = rgb & 0xFF;
+    }
+
     public int getRed() {
         return red;
     }
@@ -44,22 +57,95 @@ public class Color {
         green = g;
     }
 
+    /**
+     * Packs the color into a single int with 8 bits each for alpha, red, green
+     * and blue, in that order from the most significant byte
+     * @return packed ARGB value of the color
+     */
+    public int getRGB() {
+        return pack(red, green, blue);
+    }
+
+    /**
+     * Packs the given channels into a single opaque ARGB int
+     * @param r red channel from 0 to 255
+     * @param g green channel from 0 to 255
+     * @param b blue channel from 0 to 255
+     * @return packed ARGB value
+     */
+    public static int pack(int r, int g, int b) {
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Returns a random packed color drawn from the shared generator
+     * @return packed ARGB value
+     */
+    public static int randomRGB() {
+        synchronized (r) {
+            return randomRGB(r);
+        }
+    }
+
+    /**
+     * Returns a random packed color drawn from the given generator
+     * @param generator generator to draw the channels from
+     * @return packed ARGB value
+     */
+    public static int randomRGB(Random generator) {
+        return pack(generator.nextInt(255), generator.nextInt(255), generator.nextInt(255));
+    }
+
+    /**
+     * Reseeds the shared generator used for random colors so that a render
+     * can be reproduced
+     * @param _seed seed for the generator
+     */
+    public static void setSeed(long _seed) {
+        synchronized (r) {
+            seed = _seed;
+            r.setSeed(seed);
+        }
+    }
+
+    /**
+     * Returns the seed last given to the shared generator
+     * @return seed for random colors
+     */
+    public static long getSeed() {
+        return seed;
+    }
+
     public static Color doubleToColor(double[] values) {
-        int r = bound((int) values[0]);
-        int g = bound((int) values[1]);
-        int b = bound((int) values[2]);
-        return new Color(r, g, b);
+        return new Color(doubleToRGB(values));
     }
 
-    int BOUND_MIN = 0;
-    int BOUND_MAX = 255;
+    /**
+     * Bounds the given channel values and packs them without creating a Color
+     * @param values red, green and blue values
+     * @return packed ARGB value
+     */
+    public static int doubleToRGB(double[] values) {
+        return doubleToRGB(values[0], values[1], values[2]);
+    }
+
+    /**
+     * Bounds the given channel values and packs them without creating a Color
+     * @param red red value
+     * @param green green value
+     * @param blue blue value
+     * @return packed ARGB value
+     */
+    public static int doubleToRGB(double red, double green, double blue) {
+        return pack(bound((int) red), bound((int) green), bound((int) blue));
+    }
 
     private static int bound(int value) {
-        if (value > 255) {
-            value = 255;
+        if (value > BOUND_MAX) {
+            value = BOUND_MAX;
         }
-        else if (value < 0) {
-            value = 0;
+        else if (value < BOUND_MIN) {
+            value = BOUND_MIN;
         }
         return value;
     }
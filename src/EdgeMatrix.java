@@ -1,17 +1,44 @@
 import java.util.*;
 import java.io.*;
 
-public class EdgeMatrix extends Matrix {
+public class EdgeMatrix {
 
     private static double STEP_SIZE = 1.0 / 1000;
     private static double CIRCULAR_STEP_SIZE = 1.0 / 18;
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int POINT_SIZE = 4; // x, y, z, and the homogeneous coordinate
+
+
+    private double[] data; // Points stored one after another as x, y, z, w
+    private int size; // Number of points stored in the buffer
 
     public EdgeMatrix() {
-        super(0, 4);
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty edge matrix with room for the given number of points
+     * before it has to grow
+     * @param capacity number of points to allocate space for
+     */
+    public EdgeMatrix(int capacity) {
+        data = new double[Math.max(capacity, 1) * POINT_SIZE];
+        size = 0;
     }
 
-    public EdgeMatrix(int _rows, int _cols) {
-        super(_rows, _cols);
+    /**
+     * Makes sure the buffer can hold the given number of points, doubling
+     * its capacity as needed so that appending is amortized constant time
+     * @param capacity number of points the buffer must hold
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity * POINT_SIZE > data.length) {
+            int newLength = data.length * 2;
+            while (newLength < capacity * POINT_SIZE) {
+                newLength *= 2;
+            }
+            data = Arrays.copyOf(data, newLength);
+        }
     }
 
     /**
@@ -21,8 +48,130 @@ public class EdgeMatrix extends Matrix {
      * @param z z-coordinate of point
      */
     public void addPoint(double x, double y, double z) {
-        double[] p = { x, y, z, 1.0 };
-        super.addRow(p);
+        ensureCapacity(size + 1);
+        int i = size * POINT_SIZE;
+        data[i] = x;
+        data[i + 1] = y;
+        data[i + 2] = z;
+        data[i + 3] = 1.0;
+        size++;
+    }
+
+    /**
+     * Multiplies every point in the matrix by the given 4x4 matrix, treating
+     * each point as a row vector, and stores the result in place
+     * @param m 4x4 matrix to multiply the points by
+     * @throws IllegalArgumentException if the matrix is not 4x4
+     */
+    public void matrixMultiply(Matrix m) {
+        if (m.getRows() != POINT_SIZE || m.getCols() != POINT_SIZE) {
+            throw new IllegalArgumentException("Expected a " + POINT_SIZE + "x" + POINT_SIZE + " matrix but got "
+                    + m.getRows() + "x" + m.getCols());
+        }
+        double m00 = m.get(0, 0), m01 = m.get(0, 1), m02 = m.get(0, 2), m03 = m.get(0, 3);
+        double m10 = m.get(1, 0), m11 = m.get(1, 1), m12 = m.get(1, 2), m13 = m.get(1, 3);
+        double m20 = m.get(2, 0), m21 = m.get(2, 1), m22 = m.get(2, 2), m23 = m.get(2, 3);
+        double m30 = m.get(3, 0), m31 = m.get(3, 1), m32 = m.get(3, 2), m33 = m.get(3, 3);
+        int end = size * POINT_SIZE;
+        for (int i = 0; i < end; i += POINT_SIZE) {
+            double x = data[i], y = data[i + 1], z = data[i + 2], w = data[i + 3];
+            data[i] = x * m00 + y * m10 + z * m20 + w * m30;
+            data[i + 1] = x * m01 + y * m11 + z * m21 + w * m31;
+            data[i + 2] = x * m02 + y * m12 + z * m22 + w * m32;
+            data[i + 3] = x * m03 + y * m13 + z * m23 + w * m33;
+        }
+    }
+
+    /**
+     * Clears all points in the matrix while keeping the allocated capacity
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Gets the number of points in the matrix
+     * @return number of points
+     */
+    public int getRows() {
+        return size;
+    }
+
+    /**
+     * Gets the number of values stored for each point
+     * @return number of values per point
+     */
+    public int getCols() {
+        return POINT_SIZE;
+    }
+
+    /**
+     * Gets the value of the number at the specified row and column
+     * @param row point to get number from
+     * @param col coordinate to get number from
+     * @return value associated with the given row and column
+     */
+    public double get(int row, int col) {
+        return data[row * POINT_SIZE + col];
+    }
+
+    /**
+     * Returns the backing buffer of the matrix. Point i occupies indices
+     * 4i to 4i+3 and only the first getRows() points are valid
+     * @return buffer holding the points
+     */
+    public double[] getPoints() {
+        return data;
+    }
+
+    /**
+     * Returns a copy of the matrix with all points intact
+     * @return copy of the matrix
+     */
+    public EdgeMatrix copy() {
+        EdgeMatrix copy = new EdgeMatrix(size);
+        System.arraycopy(data, 0, copy.data, 0, size * POINT_SIZE);
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Appends every triangle of a mesh as three points each, shifting each
+     * point by the given offsets
+     * @param mesh mesh holding the triangles
+     * @param x shift in the x-coordinate
+     * @param y shift in the y-coordinate
+     * @param z shift in the z-coordinate
+     */
+    private void addTriangles(Mesh mesh, double x, double y, double z) {
+        double[] vertices = mesh.getVertices();
+        int[] indices = mesh.getIndices();
+        int n = mesh.getTriangleCount() * 3;
+        ensureCapacity(size + n);
+        int o = size * POINT_SIZE;
+        for (int i = 0; i < n; i++, o += POINT_SIZE) {
+            int v = indices[i] * POINT_SIZE;
+            data[o] = x + vertices[v];
+            data[o + 1] = y + vertices[v + 1];
+            data[o + 2] = z + vertices[v + 2];
+            data[o + 3] = 1.0;
+        }
+        size += n;
+    }
+
+    /**
+     * Converts the matrix into human-readable format
+     * @return string containing the matrix printout
+     */
+    public String toString() {
+        StringBuilder output = new StringBuilder();
+        output.append("{\n");
+        for (int i = 0; i < size; i++) {
+            int p = i * POINT_SIZE;
+            output.append(Arrays.toString(Arrays.copyOfRange(data, p, p + POINT_SIZE)) + ",\n");
+        }
+        output.append("}\n");
+        return output.toString();
     }
 
     /** @formatter:off
@@ -66,20 +215,23 @@ public class EdgeMatrix extends Matrix {
 
     /**
      * Generates the edges required to make the given circle and adds them to
-     * the EdgeMatrix. The step size can be adjusted for a smoother circle
+     * the EdgeMatrix. The step size can be adjusted for a smoother circle.
+     * Step sizes usually follow the radius, so the angles are computed here
+     * rather than cached in a TrigTable
      * @param centerX  x-coordinate for the center
      * @param centerY  y-coordinate for the center
      * @param r        radius of the circle
      * @param stepSize the size of the step to take
      */
     public void addCircle(double centerX, double centerY, double r, double stepSize) {
+        int steps = TrigTable.steps(stepSize);
         double x0 = centerX + r;
         double y0 = centerY;
         double x1, y1;
-        double t;
-        for (t=0; t<1; t+=stepSize) {
-            x1 = centerX + Math.cos(2 * Math.PI * t) * r;
-            y1 = centerY + Math.sin(2 * Math.PI * t) * r;
+        for (int i=1; i<=steps; i++) {
+            double angle = 2 * Math.PI * i / steps;
+            x1 = centerX + Math.cos(angle) * r;
+            y1 = centerY + Math.sin(angle) * r;
             addEdge(x0, y0, 0, x1, y1, 0);
             x0 = x1;
             y0 = y1;
@@ -123,33 +275,21 @@ public class EdgeMatrix extends Matrix {
      */
     public void addHermiteCurve(double x0, double y0, double dx0, double dy0,
                                 double x1, double y1, double dx1, double dy1, double stepSize) {
-        EdgeMatrix coefficientsX = new EdgeMatrix();
+        Matrix coefficientsX = new Matrix();
         coefficientsX.makeHermite();
         coefficientsX.generateHermiteCoefficients(x0, dx0, x1, dx1);
         double cXA = coefficientsX.get(0, 0);
         double cXB = coefficientsX.get(1, 0);
         double cXC = coefficientsX.get(2, 0);
         double cXD = coefficientsX.get(3, 0);
-        EdgeMatrix coefficientsY = new EdgeMatrix();
+        Matrix coefficientsY = new Matrix();
         coefficientsY.makeHermite();
         coefficientsY.generateHermiteCoefficients(y0, dy0, y1, dy1);
         double cYA = coefficientsY.get(0, 0);
         double cYB = coefficientsY.get(1, 0);
         double cYC = coefficientsY.get(2, 0);
         double cYD = coefficientsY.get(3, 0);
-        double prevX = x0;
-        double prevY = y0;
-        double x, y;
-        double t;
-        for (t=0; t<1; t+=stepSize) {
-            double tSquared = t * t;
-            double tCubed = t * tSquared;
-            x = cXA * tCubed + cXB * tSquared + cXC * t + cXD;
-            y = cYA * tCubed + cYB * tSquared + cYC * t + cYD;
-            addEdge(prevX, prevY, 0, x, y , 0);
-            prevX = x;
-            prevY = y;
-        }
+        addCubicCurve(cXA, cXB, cXC, cXD, cYA, cYB, cYC, cYD, TrigTable.steps(stepSize));
     }
 
     /** @formatter:off
@@ -167,32 +307,69 @@ public class EdgeMatrix extends Matrix {
      */
     public void addBezierCurve(double x0, double y0, double x1, double y1,
                                double x2, double y2, double x3, double y3, double stepSize) {
-        EdgeMatrix coefficientsX = new EdgeMatrix();
+        Matrix coefficientsX = new Matrix();
         coefficientsX.makeBezier();
         coefficientsX.generateBezierCoefficients(x0, x1, x2, x3);
         double cXA = coefficientsX.get(0, 0);
         double cXB = coefficientsX.get(1, 0);
         double cXC = coefficientsX.get(2, 0);
         double cXD = coefficientsX.get(3, 0);
-        EdgeMatrix coefficientsY = new EdgeMatrix();
+        Matrix coefficientsY = new Matrix();
         coefficientsY.makeBezier();
         coefficientsY.generateBezierCoefficients(y0, y1, y2, y3);
         double cYA = coefficientsY.get(0, 0);
         double cYB = coefficientsY.get(1, 0);
         double cYC = coefficientsY.get(2, 0);
         double cYD = coefficientsY.get(3, 0);
-        double prevX = x0;
-        double prevY = y0;
-        double x, y;
-        double t;
-        for (t=0; t<1; t+=stepSize) {
-            double tSquared = t * t;
-            double tCubed = t * tSquared;
-            x = cXA * tCubed + cXB * tSquared + cXC * t + cXD;
-            y = cYA * tCubed + cYB * tSquared + cYC * t + cYD;
-            addEdge(prevX, prevY, 0, x, y , 0);
+        addCubicCurve(cXA, cXB, cXC, cXD, cYA, cYB, cYC, cYD, TrigTable.steps(stepSize));
+    }
+
+    /** @formatter:off
+     * Adds the edges of a cubic curve whose x and y are given by
+     * a * t^3 + b * t^2 + c * t + d, for t from 0 to 1 in an exact number of
+     * steps. The points are found by forward differencing, which takes only
+     * additions per step, and the last point is evaluated directly so the
+     * curve ends exactly where it should
+     * @param aX the t^3 coefficient for x
+     * @param bX the t^2 coefficient for x
+     * @param cX the t coefficient for x
+     * @param dX the constant for x
+     * @param aY the t^3 coefficient for y
+     * @param bY the t^2 coefficient for y
+     * @param cY the t coefficient for y
+     * @param dY the constant for y
+     * @param steps number of edges to split the curve into
+     */
+    private void addCubicCurve(double aX, double bX, double cX, double dX,
+                               double aY, double bY, double cY, double dY, int steps) {
+        double h = 1.0 / steps;
+        double h2 = h * h;
+        double h3 = h2 * h;
+        double x = dX;
+        double dx1 = aX * h3 + bX * h2 + cX * h;
+        double dx2 = 6 * aX * h3 + 2 * bX * h2;
+        double dx3 = 6 * aX * h3;
+        double y = dY;
+        double dy1 = aY * h3 + bY * h2 + cY * h;
+        double dy2 = 6 * aY * h3 + 2 * bY * h2;
+        double dy3 = 6 * aY * h3;
+        double prevX, prevY;
+        for (int i=1; i<=steps; i++) {
             prevX = x;
             prevY = y;
+            if (i == steps) {
+                x = aX + bX + cX + dX;
+                y = aY + bY + cY + dY;
+            }
+            else {
+                x += dx1;
+                dx1 += dx2;
+                dx2 += dx3;
+                y += dy1;
+                dy1 += dy2;
+                dy2 += dy3;
+            }
+            addEdge(prevX, prevY, 0, x, y, 0);
         }
     }
 
@@ -266,37 +443,7 @@ public class EdgeMatrix extends Matrix {
      * @param stepSize the size of the step to take
      */
     public void addSphere(double cx, double cy, double cz, double r) {
-        EdgeMatrix points = new EdgeMatrix();
-        int index;
-        int numSteps = (int) (1 / CIRCULAR_STEP_SIZE) + 1;
-        int latStop = numSteps - 1;
-        int longStop = numSteps - 1;
-        points.generateSphere(cx, cy, cz, r, CIRCULAR_STEP_SIZE);
-        for (int lat=0; lat<latStop; lat++) {
-            for (int longt=0; longt<longStop; longt++) {
-                index = lat * numSteps + longt;
-                if (lat == latStop-1) { // This is referring to the last rotation, so that it connects with the first
-                    addPolygon(points.get(index, 0), points.get(index, 1), points.get(index, 2),
-                               points.get(longt, 0), points.get(longt, 1), points.get(longt, 2),
-                               points.get(longt+1, 0), points.get(longt+1, 1), points.get(longt+1, 2));
-                    if (longt != longStop-1) { // We don't want it to draw the poles again
-                        addPolygon(points.get(longt+1, 0), points.get(longt+1, 1), points.get(longt+1, 2),
-                                   points.get(index+1, 0), points.get(index+1, 1), points.get(index+1, 2 ),
-                                   points.get(index, 0), points.get(index, 1), points.get(index, 2));
-                    }
-                }
-                else {
-                    addPolygon(points.get(index, 0), points.get(index, 1), points.get(index, 2),
-                               points.get(index+numSteps, 0), points.get(index+numSteps, 1), points.get(index+numSteps, 2),
-                               points.get(index+numSteps+1, 0), points.get(index+numSteps+1, 1), points.get(index+numSteps+1, 2));
-                    if (longt != longStop-1) { // We don't want it to draw the poles again
-                        addPolygon(points.get(index+numSteps+1, 0), points.get(index+numSteps+1, 1), points.get(index+numSteps+1, 2),
-                                   points.get(index+1, 0), points.get(index+1, 1), points.get(index+1, 2 ),
-                                   points.get(index, 0), points.get(index, 1), points.get(index, 2));
-                    }
-                }
-            }
-        }
+        addTriangles(Mesh.sphere(r, CIRCULAR_STEP_SIZE), cx, cy, cz);
     }
 
     /** @formatter:off
@@ -309,12 +456,14 @@ public class EdgeMatrix extends Matrix {
      * @param stepSize the size of the step to take
      */
     public void generateSphere(double cx, double cy, double cz, double r, double stepSize) {
+        int steps = TrigTable.steps(stepSize);
+        TrigTable trig = TrigTable.get(2 * steps); // The circle only makes a half turn
         double x, y, z;
-        for (double rotation=0; rotation<1+stepSize; rotation+=stepSize) { // theta
-            for (double circle=0; circle<1+stepSize; circle+=stepSize) { // phi
-                x = cx + r * Math.cos(Math.PI * circle);
-                y = cy + r * Math.sin(Math.PI * circle) * Math.cos(2 * Math.PI * rotation);
-                z = cz + r * Math.sin(Math.PI * circle) * Math.sin(2 * Math.PI * rotation);
+        for (int rotation=0; rotation<=steps; rotation++) { // theta
+            for (int circle=0; circle<=steps; circle++) { // phi
+                x = cx + r * trig.cos(circle);
+                y = cy + r * trig.sin(circle) * trig.cos(2 * rotation);
+                z = cz + r * trig.sin(circle) * trig.sin(2 * rotation);
                 addPoint(x, y, z);
             }
         }
@@ -331,23 +480,7 @@ public class EdgeMatrix extends Matrix {
      */
     public void addTorus(double cx, double cy, double cz,
                          double circleRadius, double torusRadius) {
-        EdgeMatrix points = new EdgeMatrix();
-        int index;
-        int numSteps = (int) (1 / CIRCULAR_STEP_SIZE) + 1;
-        int latStop = numSteps - 1;
-        int longStop = numSteps - 1;
-        points.generateTorus(cx, cy, cz, circleRadius, torusRadius, CIRCULAR_STEP_SIZE);
-        for (int lat=0; lat<latStop; lat++) {
-            for (int longt=0; longt<longStop; longt++) {
-                index = lat * numSteps + longt;
-                addPolygon(points.get(index, 0), points.get(index, 1), points.get(index, 2),
-                           points.get(index+1, 0), points.get(index+1, 1), points.get(index+1, 2),
-                           points.get(index+numSteps, 0), points.get(index+numSteps, 1), points.get(index+numSteps, 2));
-                addPolygon(points.get(index+numSteps+1, 0), points.get(index+numSteps+1, 1), points.get(index+numSteps+1, 2),
-                           points.get(index+numSteps, 0), points.get(index+numSteps, 1), points.get(index+numSteps, 2),
-                           points.get(index+1, 0), points.get(index+1, 1), points.get(index+1, 2));
-            }
-        }
+        addTriangles(Mesh.torus(circleRadius, torusRadius, CIRCULAR_STEP_SIZE), cx, cy, cz);
     }
 
     /**
@@ -362,12 +495,14 @@ public class EdgeMatrix extends Matrix {
      */
     public void generateTorus(double cx, double cy, double cz,
                               double circleRadius, double torusRadius, double stepSize) {
+        int steps = TrigTable.steps(stepSize);
+        TrigTable trig = TrigTable.get(steps);
         double x, y, z;
-        for (double rotation=0; rotation<1+stepSize; rotation+=stepSize) { // theta
-            for (double circle=0; circle<1+stepSize; circle+=stepSize) { //phi
-                x = cx + Math.cos(2 * Math.PI * rotation) * (circleRadius * Math.cos(2 * Math.PI * circle) + torusRadius);
-                y = cy + Math.sin(2 * Math.PI * circle) * circleRadius;
-                z = cz + Math.sin(2 * Math.PI * rotation) * (circleRadius * Math.cos(2 * Math.PI * circle) + torusRadius);
+        for (int rotation=0; rotation<=steps; rotation++) { // theta
+            for (int circle=0; circle<=steps; circle++) { //phi
+                x = cx + trig.cos(rotation) * (circleRadius * trig.cos(circle) + torusRadius);
+                y = cy + trig.sin(circle) * circleRadius;
+                z = cz + trig.sin(rotation) * (circleRadius * trig.cos(circle) + torusRadius);
                 addPoint(x, y, z);
             }
         }
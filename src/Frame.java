@@ -1,16 +1,81 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 public class Frame {
 
+    public static final int FLAT_SHADING = 0; // One color per triangle
+    public static final int GOURAUD_SHADING = 1; // Colors lit at the vertices and blended across each triangle
+    public static final int PHONG_SHADING = 2; // Normals blended across each triangle and lit at every pixel
+
     private static final int DEFAULT_DISPLAY_SIZE = 500;
-    private Color[][] frame;
-    private double[][] zBuffer;
+    private static final int TILE_SIZE = 64; // Width and height of the tiles used by the parallel rasterizer
+    private static final int PARALLEL_THRESHOLD = 64; // Fewest triangles in a batch worth splitting across threads
+    private static final int GUARD_BAND = 1 << 12; // Pixels past each edge of the frame a triangle may reach before it is clipped
+    private static final int LEFT = 1, RIGHT = 2, BELOW = 4, ABOVE = 8; // Outcodes for each edge of the frame a vertex is past
+    private static final int OUTSIDE_GUARD_BAND = 16, BEHIND = 32; // Outcodes for vertices that must be clipped
+    private static final int ACCEPT = 0, REJECT = 1, CLIP = 2; // What classify found a triangle needs
+    private static ForkJoinPool pool; // Shared by every frame, null when rasterizing on one thread
+    private static boolean sortTriangles = false; // Draws each batch front to back
+    private int[] frame; // Packed ARGB pixels, stored row by row from the top
+    private double[] zBuffer; // Depth of each pixel, indexed the same as frame
+    private HiZBuffer hiZ; // Farthest depth in each block of the depth buffer
+    private Rasterizer rasterizer; // Draws anywhere on the frame
+    private Rasterizer[] tiles; // Each draws only inside its own tile
+    private int tilesX, tilesY;
+    private int[] batchOffsets = new int[0]; // Offsets of the three vertices of each triangle waiting to be drawn
+    private int[] batchColors = new int[0]; // Packed color of each triangle waiting to be drawn
+    private long[] batchOrder = new long[0]; // Depth and index of each triangle, for sorting the batch
+    private int[] sortedOffsets = new int[0]; // Vertex offsets of the batch in sorted order, before being copied back
+    private int[] sortedColors = new int[0]; // Colors of the batch in sorted order, before being copied back
+    private double[] vertexAttributes = new double[0]; // Normal or color of each vertex of the shape being shaded smoothly
+    private final double[] color = new double[3]; // Color of the triangle being lit
+    private final Lighting lighting = new Lighting();
+    private Camera camera; // Camera to draw through in perspective, or null to draw straight onto the frame
+    private double[] projected = new double[0]; // Vertices of the shape being drawn projected by the camera
+    private final Clipper clipper = new Clipper();
+    private double[] clippedVertices = new double[0]; // Three vertices for each triangle cut out by the clipper
+    private double[] clippedAttributes = new double[0]; // Color or normal of each clipped vertex
+    private int[] clippedColors = new int[0]; // Packed color of each clipped triangle
+    private int clippedCount; // Number of clipped triangles waiting to be drawn
+    private final double[] line = new double[8]; // Two points of a line cut off at the near plane
+    private int shading = FLAT_SHADING;
+    private int[][] bins; // Indices into the batch of the triangles touching each tile, in drawing order
+    private int[] binSizes;
+    private long renderStart; // When drawing on the frame last started from a clear frame
     int width;
     int height;
     Color DEFAULT_COLOR = new Color(0, 0, 0);
     Color frameColor;
 
+    static {
+        setThreads(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets how many threads rasterize large batches of triangles. Frames
+     * split into tiles and give each thread whole tiles, so the output is
+     * the same no matter how many threads are used
+     * @param threads number of worker threads, 1 or less to draw on the
+     *        calling thread only
+     */
+    public static synchronized void setThreads(int threads) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Sets whether each batch of triangles is drawn from front to back. The
+     * coarse depth buffer can then skip more of the triangles behind, but
+     * triangles at exactly the same depth may come out in a different order
+     * @param sort true to sort each batch by closest depth first
+     */
+    public static void setSortTriangles(boolean sort) {
+        sortTriangles = sort;
+    }
+
     /**
      * Method to create the frame used for drawing
      * @param _width width of the frame in pixels
@@ -21,16 +86,45 @@ public class Frame {
         width = _width;
         height = _height;
         frameColor = _color;
-        frame = new Color[height][width];
-        zBuffer = new double[height][width];
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                frame[j][i] = frameColor;
-                zBuffer[j][i] = Double.NEGATIVE_INFINITY;
+        frame = new int[width * height];
+        zBuffer = new double[width * height];
+        hiZ = new HiZBuffer(zBuffer, width, height);
+        rasterizer = new Rasterizer(frame, zBuffer, hiZ, width, height, 0, 0, width - 1, height - 1);
+        tiles = null;
+        fillFrame();
+    }
+
+    /**
+     * Splits the frame into square tiles, each with its own rasterizer, the
+     * first time the parallel rasterizer is used
+     */
+    private void createTiles() {
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new Rasterizer[tilesX * tilesY];
+        bins = new int[tiles.length][16];
+        binSizes = new int[tiles.length];
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                int minX = tx * TILE_SIZE, minY = ty * TILE_SIZE;
+                int maxX = Math.min(minX + TILE_SIZE, width) - 1;
+                int maxY = Math.min(minY + TILE_SIZE, height) - 1;
+                tiles[ty * tilesX + tx] = new Rasterizer(frame, zBuffer, hiZ, width, height, minX, minY, maxX, maxY);
             }
         }
     }
 
+    /**
+     * Resets every pixel to the background color and every depth to negative
+     * infinity without reallocating the buffers
+     */
+    private void fillFrame() {
+        Arrays.fill(frame, frameColor.getRGB());
+        Arrays.fill(zBuffer, Double.NEGATIVE_INFINITY);
+        hiZ.clear();
+        renderStart = System.nanoTime();
+    }
+
     public Frame() {
         createFrame(DEFAULT_DISPLAY_SIZE, DEFAULT_DISPLAY_SIZE, DEFAULT_COLOR);
     }
@@ -51,7 +145,7 @@ public class Frame {
      * @param z z-coordinate of point
      */
     public void plot(int x, int y, double z) {
-        plot(x, y, z, new Color(255, 255, 255));
+        plot(x, y, z, 0xFFFFFFFF);
     }
 
     /**
@@ -63,15 +157,19 @@ public class Frame {
      * @param c color of the point
      */
     public void plot(int x, int y, double z0, Color c) {
-        int adjustedY = height - 1 - y;
-        //System.out.println("Plotting... (" + x + ", " + y + ")");
-        if (x >= 0 && x < width && adjustedY >= 0 && adjustedY < height) {
-            //System.out.println(z0 + " " + zBuffer[adjustedY][x] + " " + (z0 > zBuffer[adjustedY][x]));
-            if (z0 > zBuffer[adjustedY][x]) {
-                zBuffer[adjustedY][x] = z0;
-                frame[adjustedY][x] = c;
-            }
-        }
+        plot(x, y, z0, c.getRGB());
+    }
+
+    /**
+     * Plots a point on the frame given its coordinates and packed RGB color.
+     * Origin is at the bottom left
+     * @param x x-coordinate of point
+     * @param y y-coordinate of point
+     * @param z0 z-coordinate of point
+     * @param rgb packed color of the point, as returned by Color.getRGB()
+     */
+    public void plot(int x, int y, double z0, int rgb) {
+        rasterizer.plot(x, y, z0, rgb);
     }
 
     /**
@@ -80,13 +178,40 @@ public class Frame {
      * @param matrix matrix containing the points to draw lines
      * @param c color of the lines to be drawn
      */
-    public void drawLines(Matrix matrix, Color c) {
-        ArrayList<double[]> m = matrix.getMatrix();
-        for (int i = 0; i < matrix.getRows() - 1; i += 2) { // Get every two points
-            double[] p0 = m.get(i);
-            double[] p1 = m.get(i + 1);
-            //System.out.println("Drawing... " + Arrays.toString(p0) + " to " + Arrays.toString(p1));
-            drawLine((int) p0[0], (int) p0[1], p0[2], (int) p1[0], (int) p1[1], p1[2], c);
+    public void drawLines(EdgeMatrix matrix, Color c) {
+        drawLines(matrix, c.getRGB());
+    }
+
+    /**
+     * Goes through the given matrix and draws a line between every two
+     * points using the given packed color. Origin is at the bottom left
+     * @param matrix matrix containing the points to draw lines
+     * @param rgb packed color of the lines to be drawn
+     */
+    public void drawLines(EdgeMatrix matrix, int rgb) {
+        double[] m = project(matrix.getPoints(), matrix.getRows());
+        int end = (matrix.getRows() - 1) * 4;
+        for (int i = 0; i < end; i += 8) { // Get every two points
+            int p0 = i, p1 = i + 4;
+            if (camera != null && (m[p0 + 3] < Camera.NEAR || m[p1 + 3] < Camera.NEAR)) {
+                drawClippedLine(matrix.getPoints(), p0, p1, rgb);
+                continue;
+            }
+            drawLine((int) m[p0], (int) m[p0 + 1], m[p0 + 2], (int) m[p1], (int) m[p1 + 1], m[p1 + 2], rgb);
+        }
+    }
+
+    /**
+     * Draws the part of a line relative to the camera that is in front of
+     * the near plane
+     * @param m buffer holding the points, relative to the camera
+     * @param p0 offset of the starting point
+     * @param p1 offset of the ending point
+     * @param rgb packed color of the line
+     */
+    private void drawClippedLine(double[] m, int p0, int p1, int rgb) {
+        if (clipper.clipLine(m, p0, p1, camera, line)) {
+            drawLine((int) line[0], (int) line[1], line[2], (int) line[4], (int) line[5], line[6], rgb);
         }
     }
 
@@ -96,300 +221,574 @@ public class Frame {
      * @param matrix matrix containing the points to draw polygons
      * @param c color of the polygons to be drawn
      */
-    public void drawPolygons(Matrix matrix, Color c) {
-        ArrayList<double[]> m = matrix.getMatrix();
-        if (matrix.getRows() >= 3) {
-            for (int i = 0; i < matrix.getRows() - 2; i += 3) {
-                double[] p0 = m.get(i);
-                double[] p1 = m.get(i + 1);
-                double[] p2 = m.get(i + 2);
-                if (isVisible(p0, p1, p2)) {
-                    //System.out.println("Drawing Polygon..." + Arrays.toString(p0) + " to " + Arrays.toString(p1) + " to " + Arrays.toString(p2));
-
-                    /* Ambient Light Test
-                    double[] I_a = { 0, 174, 239 };
-                    double[] K_a = { .56, .16, .78 };
-                    double[] color = flatAmbientLight(I_a, K_a);
-                    c = Color.doubleToColor(color);
-                    */
-
-                    /* Flat Diffuse Light Test
-                    double[] I_i = { 0, 174, 239 };
-                    double[] K_d = { 1.0, 1.0, 1.0 };
-                    double[] light = { 1, 1, 1 };
-                    double[] color = flatDiffuseLight(p0, p1, p2, I_i, K_d, light);
-                    c = Color.doubleToColor(color);
-                    */
-
-                    /* Flat Specular Light Test
-                    double[] I_i = Utils.hexToRGB("#00aeef");
-                    double[] K_s = { 1.0, 1.0, 1.0 };
-                    double[] light = { 1, 1, 1 };
-                    double[] viewer = { 0, 0, 1 };
-                    double[] color = flatSpecularLight(p0, p1, p2, I_i, K_s, light, viewer);
-                    c = Color.doubleToColor(color);
-                    */
-
-                    drawLine((int) p0[0], (int) p0[1], p0[2], (int) p1[0], (int) p1[1], p1[2], c);
-                    drawLine((int) p1[0], (int) p1[1], p1[2], (int) p2[0], (int) p2[1], p2[2], c);
-                    drawLine((int) p2[0], (int) p2[1], p2[2], (int) p0[0], (int) p0[1], p0[2], c);
-                    //scanlineConvert(p0, p1, p2, c);
-                }
+    public void drawPolygons(EdgeMatrix matrix, Color c) {
+        drawPolygons(matrix, c.getRGB());
+    }
+
+    /**
+     * Goes through the given matrix and interprets every set of 3 points as
+     * the vertices of a triangle
+     * @param matrix matrix containing the points to draw polygons
+     * @param rgb packed color of the polygons to be drawn
+     */
+    public void drawPolygons(EdgeMatrix matrix, int rgb) {
+        drawPolygons(matrix.getPoints(), null, matrix.getRows(), matrix.getRows() / 3, rgb);
+    }
+
+    /**
+     * Draws every triangle in the given mesh
+     * @param mesh mesh containing the triangles to draw
+     * @param rgb packed color of the polygons to be drawn
+     */
+    public void drawPolygons(Mesh mesh, int rgb) {
+        drawPolygons(mesh.getVertices(), mesh.getIndices(), mesh.getVertexCount(), mesh.getTriangleCount(), rgb);
+    }
+
+    /**
+     * Draws the outlines of the visible triangles in a vertex buffer. Edges
+     * of triangles that reach behind the camera are cut off at the near
+     * plane, and the rest are left whole since lines are clipped as they are
+     * drawn
+     * @param m buffer holding the vertices
+     * @param indices three vertex indices per triangle, or null if the
+     *        vertices of each triangle are stored one after another
+     * @param vertices number of vertices in the buffer
+     * @param triangles number of triangles to draw
+     * @param rgb packed color of the polygons to be drawn
+     */
+    private void drawPolygons(double[] m, int[] indices, int vertices, int triangles, int rgb) {
+        double[] s = project(m, vertices);
+        int count = 0;
+        ensureBatchCapacity(triangles);
+        for (int t = 0; t < triangles * 3; t += 3) {
+            int p0 = offset(indices, t), p1 = offset(indices, t + 1), p2 = offset(indices, t + 2); // Offsets of the three vertices in the buffer
+            if (!isFacing(m, p0, p1, p2)) {
+                continue;
+            }
+            int code = classify(s, p0, p1, p2);
+            if (code == REJECT) {
+                continue;
+            }
+            if (code == CLIP && camera != null && ((outcode(s, p0) | outcode(s, p1) | outcode(s, p2)) & BEHIND) != 0) {
+                drawClippedLine(m, p0, p1, rgb);
+                drawClippedLine(m, p1, p2, rgb);
+                drawClippedLine(m, p2, p0, rgb);
+            }
+            else {
+                batchOffsets[count * 3] = p0;
+                batchOffsets[count * 3 + 1] = p1;
+                batchOffsets[count * 3 + 2] = p2;
+                batchColors[count] = rgb;
+                count++;
             }
         }
+        drawBatch(s, count, false, null, null);
     }
 
-    public void drawShadedPolygons(Matrix matrix, double[] ambient, double[][] constants,
-            Collection<double[]> lightSources) {
-        ArrayList<double[]> m = matrix.getMatrix();
-        if (matrix.getRows() >= 3) {
-            for (int i = 0; i < matrix.getRows() - 2; i += 3) {
-                double[] p0 = m.get(i);
-                double[] p1 = m.get(i + 1);
-                double[] p2 = m.get(i + 2);
-                if (isVisible(p0, p1, p2)) {
-                    //System.out.println("Drawing Polygon..." + Arrays.toString(p0) + " to " + Arrays.toString(p1) + " to " + Arrays.toString(p2));
-                    double[] I_a = ambient;
-                    double[] K_a = constants[0];
-                    double[] I_i = constants[3];
-                    double[] K_d = constants[1];
-                    double[] K_s = constants[2];
-
-                    double[][] lights = new double[lightSources.size()][3];
-                    int l = 0;
-                    for (double[] light : lightSources) {
-                        lights[l] = light;
-                        l++;
-                    }
-                    double[] view = { 0, 0, 1 };
+    /**
+     * Goes through the given matrix and fills in every set of 3 points as a
+     * triangle lit by the lights last given to setLights. No two triangles
+     * share a vertex, so smooth shading looks the same as flat shading
+     * @param matrix matrix containing the points to draw polygons
+     * @param ambient intensity of the ambient light
+     * @param constants ambient, diffuse, and specular constants, and the
+     *        intensity of the light sources
+     */
+    public void drawShadedPolygons(EdgeMatrix matrix, double[] ambient, double[][] constants) {
+        drawShadedPolygons(matrix.getPoints(), null, null, matrix.getRows(), matrix.getRows() / 3,
+                ambient, constants);
+    }
 
-                    double[] color = flatShading(p0, p1, p2, I_a, K_a, I_i, K_d, K_s, lights, view);
-                    Color c = Color.doubleToColor(color);
+    /**
+     * Draws every triangle in the given mesh filled in and lit by the lights
+     * last given to setLights, using the shading set by setShading
+     * @param mesh mesh containing the triangles to draw
+     * @param ambient intensity of the ambient light
+     * @param constants ambient, diffuse, and specular constants, and the
+     *        intensity of the light sources
+     */
+    public void drawShadedPolygons(Mesh mesh, double[] ambient, double[][] constants) {
+        drawShadedPolygons(mesh.getVertices(), mesh.getIndices(), mesh.getSharedVertices(), mesh.getVertexCount(),
+                mesh.getTriangleCount(), ambient, constants);
+    }
 
-                    drawLine((int) p0[0], (int) p0[1], p0[2], (int) p1[0], (int) p1[1], p1[2], c);
-                    drawLine((int) p1[0], (int) p1[1], p1[2], (int) p2[0], (int) p2[1], p2[2], c);
-                    drawLine((int) p2[0], (int) p2[1], p2[2], (int) p0[0], (int) p0[1], p0[2], c);
-                    scanlineConvert(p0, p1, p2, c);
-                }
+    /**
+     * Fills in and lights the visible triangles in a vertex buffer. The
+     * normal of each triangle is found once and shared by the visibility
+     * test and every light. Triangles entirely off the frame are skipped
+     * before they are lit, and triangles reaching behind the camera or past
+     * the guard band are clipped and drawn after the rest
+     * @param m buffer holding the vertices
+     * @param indices three vertex indices per triangle, or null if the
+     *        vertices of each triangle are stored one after another
+     * @param shared vertex whose normal each vertex uses, or null if every
+     *        vertex uses its own
+     * @param vertices number of vertices in the buffer
+     * @param triangles number of triangles to draw
+     * @param ambient intensity of the ambient light
+     * @param constants ambient, diffuse, and specular constants, and the
+     *        intensity of the light sources
+     */
+    private void drawShadedPolygons(double[] m, int[] indices, int[] shared, int vertices, int triangles,
+            double[] ambient, double[][] constants) {
+        lighting.setMaterial(ambient, constants);
+        if (shading != FLAT_SHADING) {
+            findVertexAttributes(m, indices, shared, vertices, triangles);
+        }
+        double[] s = project(m, vertices);
+        double[] attributes = shading == FLAT_SHADING ? null : vertexAttributes;
+        int count = 0;
+        clippedCount = 0;
+        ensureBatchCapacity(triangles);
+        for (int t = 0; t < triangles * 3; t += 3) {
+            int p0 = offset(indices, t), p1 = offset(indices, t + 1), p2 = offset(indices, t + 2); // Offsets of the three vertices in the buffer
+            double ax = m[p0] - m[p1], ay = m[p0 + 1] - m[p1 + 1], az = m[p0 + 2] - m[p1 + 2];
+            double bx = m[p0] - m[p2], by = m[p0 + 1] - m[p2 + 1], bz = m[p0 + 2] - m[p2 + 2];
+            double nx = ay * bz - az * by;
+            double ny = az * bx - ax * bz;
+            double nz = ax * by - ay * bx;
+            if (camera == null ? nz <= 0 : nx * m[p0] + ny * m[p0 + 1] + nz * m[p0 + 2] >= 0) {
+                continue; // Facing away from the viewer, same as isFacing
+            }
+            int code = classify(s, p0, p1, p2);
+            if (code == REJECT) {
+                continue;
+            }
+            int rgb = shading == FLAT_SHADING ? lighting.shade(nx, ny, nz, color) : 0;
+            if (code == CLIP) {
+                clipTriangle(m, p0, p1, p2, rgb, attributes);
+                continue;
             }
+            batchOffsets[count * 3] = p0;
+            batchOffsets[count * 3 + 1] = p1;
+            batchOffsets[count * 3 + 2] = p2;
+            batchColors[count] = rgb;
+            count++;
+        }
+        Lighting light = shading == PHONG_SHADING ? lighting : null;
+        drawBatch(s, count, true, attributes, light);
+        if (clippedCount > 0) {
+            ensureBatchCapacity(clippedCount);
+            for (int t = 0; t < clippedCount * 3; t++) {
+                batchOffsets[t] = t * 4;
+            }
+            System.arraycopy(clippedColors, 0, batchColors, 0, clippedCount);
+            drawBatch(clippedVertices, clippedCount, true, attributes == null ? null : clippedAttributes, light);
+        }
+    }
+
+    /**
+     * Clips a triangle against the near plane and the guard band and adds
+     * what is left, split into a fan of triangles, to the clipped triangles
+     * @param m buffer holding the vertices
+     * @param p0 offset of the first vertex
+     * @param p1 offset of the second vertex
+     * @param p2 offset of the third vertex
+     * @param rgb packed color of the triangle
+     * @param attributes color or normal of each vertex, or null if the
+     *        triangle is drawn in its packed color
+     */
+    private void clipTriangle(double[] m, int p0, int p1, int p2, int rgb, double[] attributes) {
+        int n = clipper.clip(m, p0, p1, p2, attributes, camera,
+                -GUARD_BAND, -GUARD_BAND, width + GUARD_BAND, height + GUARD_BAND);
+        if (n == 0) {
+            return;
+        }
+        int needed = clippedCount + n - 2;
+        if (clippedColors.length < needed) {
+            int capacity = Math.max(needed, clippedColors.length * 2);
+            clippedVertices = Arrays.copyOf(clippedVertices, capacity * 12);
+            clippedAttributes = Arrays.copyOf(clippedAttributes, capacity * 9);
+            clippedColors = Arrays.copyOf(clippedColors, capacity);
+        }
+        double[] a = attributes == null ? null : clippedAttributes;
+        for (int i = 1; i < n - 1; i++) {
+            int v = clippedCount * 3;
+            clipper.copyVertex(0, clippedVertices, v, a);
+            clipper.copyVertex(i, clippedVertices, v + 1, a);
+            clipper.copyVertex(i + 1, clippedVertices, v + 2, a);
+            clippedColors[clippedCount] = rgb;
+            clippedCount++;
         }
     }
 
     /**
-     * Shades a polygon given the three vertices using the horizontal scanline
-     * algorithm going from the bottom to the top.
-     * @param p0 coordinate of one vertex of the polygon
-     * @param p1 coordinate of one vertex of the polygon
-     * @param p2 coordinate of one vertex of the polygon
-     * @param c color of shading on the polygons
+     * Finds the normal of every vertex by adding up the normals of all the
+     * triangles around it, weighted by their area. Vertices that share a
+     * normal add into and read from the same one, and each of those is lit
+     * only once. For Gouraud shading this leaves the color of each vertex in
+     * vertexAttributes, and for Phong shading its unit normal
+     * @param m buffer holding the vertices
+     * @param indices three vertex indices per triangle, or null if the
+     *        vertices of each triangle are stored one after another
+     * @param shared vertex whose normal each vertex uses, or null if every
+     *        vertex uses its own
+     * @param vertices number of vertices in the buffer
+     * @param triangles number of triangles in the buffer
      */
-    private void scanlineConvert(double[] p0, double[] p1, double[] p2, Color c) {
-        double[] temp;
-        // This is to define p0 as the lowest point and p2 as the highest point
-        if (p1[1] > p2[1]) {
-            temp = p1;
-            p1 = p2;
-            p2 = temp;
+    private void findVertexAttributes(double[] m, int[] indices, int[] shared, int vertices, int triangles) {
+        if (vertexAttributes.length < vertices * 3) {
+            vertexAttributes = new double[vertices * 3];
         }
-        if (p0[1] > p1[1]) {
-            if (p0[1] > p2[1]) {
-                temp = p0;
-                p0 = p1;
-                p1 = p2;
-                p2 = temp;
+        double[] n = vertexAttributes;
+        Arrays.fill(n, 0, vertices * 3, 0);
+        for (int t = 0; t < triangles * 3; t += 3) {
+            int p0 = offset(indices, t), p1 = offset(indices, t + 1), p2 = offset(indices, t + 2);
+            double ax = m[p0] - m[p1], ay = m[p0 + 1] - m[p1 + 1], az = m[p0 + 2] - m[p1 + 2];
+            double bx = m[p0] - m[p2], by = m[p0 + 1] - m[p2 + 1], bz = m[p0 + 2] - m[p2 + 2];
+            double nx = ay * bz - az * by;
+            double ny = az * bx - ax * bz;
+            double nz = ax * by - ay * bx;
+            for (int p = t; p < t + 3; p++) {
+                int v = indices == null ? p : indices[p];
+                int i = (shared == null ? v : shared[v]) * 3;
+                n[i] += nx;
+                n[i + 1] += ny;
+                n[i + 2] += nz;
+            }
+        }
+        for (int v = 0; v < vertices; v++) {
+            int i = v * 3;
+            int s = shared == null ? v : shared[v];
+            if (s != v) { // Shared vertices always come before the ones sharing them
+                n[i] = n[s * 3];
+                n[i + 1] = n[s * 3 + 1];
+                n[i + 2] = n[s * 3 + 2];
+            }
+            else if (shading == GOURAUD_SHADING) {
+                lighting.light(n[i], n[i + 1], n[i + 2], n, i);
             }
             else {
-                temp = p0;
-                p0 = p1;
-                p1 = temp;
+                double mag = Math.sqrt(n[i] * n[i] + n[i + 1] * n[i + 1] + n[i + 2] * n[i + 2]);
+                n[i] /= mag;
+                n[i + 1] /= mag;
+                n[i + 2] /= mag;
             }
         }
-        double x0 = p0[0], x1 = x0;
-        int y = (int) p0[1];
-        double z0 = p0[2], z1 = z0;
-        double dx0 = (p2[0] - p0[0]) / ((int) p2[1] - (int) p0[1]);
-        double dz0 = (p2[2] - p0[2]) / ((int) p2[1] - (int) p0[1]);
-        // Draws the bottom half of the polygon
-        double dx1 = (p1[0] - p0[0]) / ((int) p1[1] - (int) p0[1]);
-        double dz1 = (p1[2] - p0[2]) / ((int) p1[1] - (int) p0[1]);
-        int midY = (int) p1[1];
-        while (y < midY) {
-            x0 += dx0;
-            x1 += dx1;
-            y++;
-            z0 += dz0;
-            z1 += dz1;
-            drawLine((int) x0, y, z0, (int) x1, y, z1, c);
-        }
-        x1 = p1[0]; // Sets the start of the top half's end to the x-coor of
-                    // the middle point. This fixes a bug when the middle and
-                    // bottom points have the same y-coor
-        z1 = p1[2];
-        // Draws the top half of the polygon
-        dx1 = (p2[0] - p1[0]) / ((int) p2[1] - (int) p1[1]);
-        int topY = (int) p2[1];
-        while (y < topY) {
-            x0 += dx0;
-            x1 += dx1;
-            y++;
-            drawLine((int) x0, y, z0, (int) x1, y, z1, c);
-        }
-    }
-
-    /**
-     * Flat Ambient Lighting given by the equation I = I_a*K_a
-     * @param I_a intensity of the ambient light
-     * @param K_a ambient constant
-     * @return ambient lighting values
-     **/
-    private double[] flatAmbientLight(double[] I_a, double[] K_a) {
-        double[] ambient = new double[3];
-        ambient[0] = I_a[0] * K_a[0];
-        ambient[1] = I_a[1] * K_a[1];
-        ambient[2] = I_a[2] * K_a[2];
-        return ambient;
-    }
-
-    /**
-     * Diffuse Lighting given be the equation, I_d = I_i*K_d(L•N), where L is
-     * the light vector and N is the surface normal
-     * @param p0 first vertex of the polygon, going clockwise
-     * @param p1 second vertex of the polygon, going clockwise
-     * @param p2 third vertex of the polygon, going clockwise
-     * @param I_i intensity of the diffuse light
-     * @param K_d diffuse constant
-     * @param light vector corresponding to the light source
-     * @return diffuse lighting values
-     **/
-    private double[] flatDiffuseLight(double[] p0, double[] p1, double[] p2, double[] I_i,
-            double[] K_d, double[] light) {
-        // Getting the normal of the surface
-        double[] v1 = new double[] { p0[0] - p1[0], p0[1] - p1[1], p0[2] - p1[2] };
-        double[] v2 = new double[] { p0[0] - p2[0], p0[1] - p2[1], p0[2] - p2[2] };
-        double[] surfaceNormal = GMath.crossProduct(v1, v2);
-
-        light = GMath.normalize(light);
-        surfaceNormal = GMath.normalize(surfaceNormal);
-        double diffuseVector = GMath.dotProduct(light, surfaceNormal);
-
-        double[] diffuse = new double[3];
-        diffuse[0] = I_i[0] * K_d[0] * diffuseVector;
-        diffuse[1] = I_i[1] * K_d[1] * diffuseVector;
-        diffuse[2] = I_i[2] * K_d[2] * diffuseVector;
-
-        for (int i = 0; i < diffuse.length; i++) {
-            if (diffuse[i] < 0) {
-                diffuse[i] = 0;
-            }
+    }
+
+    /**
+     * Sets the light sources used by drawShadedPolygons. The directions are
+     * normalized here once rather than for every triangle, and turned to
+     * match the camera last given to setCamera, so this only needs to be
+     * called again when the lights or the camera change
+     * @param lightSources vectors corresponding to the light sources
+     */
+    public void setLights(Collection<double[]> lightSources) {
+        lighting.setLights(lightSources, camera == null ? null : camera.getView());
+    }
+
+    /**
+     * Sets the camera to draw through. Shapes drawn on the frame must then
+     * already be relative to the camera, which composing its view transform
+     * onto their transforms does. Triangles and lines reaching behind the
+     * near plane are clipped
+     * @param _camera camera to draw through in perspective, or null to draw
+     *        x and y straight onto the frame
+     */
+    public void setCamera(Camera _camera) {
+        camera = _camera;
+    }
+
+    /**
+     * Projects a vertex buffer through the camera
+     * @param m buffer holding the vertices
+     * @param vertices number of vertices in the buffer
+     * @return buffer holding the projected vertices, which is m itself if
+     *         there is no camera
+     */
+    private double[] project(double[] m, int vertices) {
+        if (camera == null) {
+            return m;
+        }
+        if (projected.length < vertices * 4) {
+            projected = new double[vertices * 4];
         }
+        camera.project(m, projected, vertices);
+        return projected;
+    }
 
-        //System.out.println(Arrays.toString(diffuse));
-        return diffuse;
-    }
-
-    /**
-     * Specular Lighting given by the equation I_i*K_s[(2N*(N•L)-L)•V]^n where L
-     * is the light vector, N is the surface normal, and V is the viewer vector.
-     * @param p0 first vertex of the polygon, going clockwise
-     * @param p1 second vertex of the polygon, going clockwise
-     * @param p2 third vertex of the polygon, going clockwise
-     * @param I_i intensity of the light source
-     * @param K_s specular constant
-     * @param light vector corresponding to the light source
-     * @param viewer vector corresponding to the viewer
-     * @return specular lighting values
-     **/
-    private double[] flatSpecularLight(double[] p0, double[] p1, double[] p2, double[] I_i,
-            double[] K_s, double[] light, double[] viewer) {
-        // Getting the normal of the surface
-        double[] v1 = new double[] { p0[0] - p1[0], p0[1] - p1[1], p0[2] - p1[2] };
-        double[] v2 = new double[] { p0[0] - p2[0], p0[1] - p2[1], p0[2] - p2[2] };
-        double[] surfaceNormal = GMath.crossProduct(v1, v2);
-
-        double n = 1; // This is a variable constant. A perfect reflector has n=Infinity
-
-        light = GMath.normalize(light);
-        surfaceNormal = GMath.normalize(surfaceNormal);
-        double dot = GMath.dotProduct(light, surfaceNormal);
-        double[] reflectVector = GMath.subtract(GMath.scale(surfaceNormal, dot * 2), light);
-        double specularVector = GMath.dotProduct(reflectVector, viewer);
-        specularVector = Math.pow(specularVector, n);
-
-        double[] specular = new double[3];
-        specular[0] = I_i[0] * K_s[0] * specularVector;
-        specular[1] = I_i[1] * K_s[1] * specularVector;
-        specular[2] = I_i[2] * K_s[2] * specularVector;
-
-        for (int i = 0; i < specular.length; i++) {
-            if (specular[i] < 0) {
-                specular[i] = 0;
-            }
+    /**
+     * Sets how drawShadedPolygons shades meshes
+     * @param _shading FLAT_SHADING, GOURAUD_SHADING, or PHONG_SHADING
+     */
+    public void setShading(int _shading) {
+        shading = _shading;
+    }
+
+    /**
+     * Finds where a vertex of a triangle starts in the vertex buffer
+     * @param indices three vertex indices per triangle, or null if the
+     *        vertices of each triangle are stored one after another
+     * @param i position of the vertex in the list of triangle vertices
+     * @return offset of the vertex in the vertex buffer
+     */
+    private static int offset(int[] indices, int i) {
+        return (indices == null ? i : indices[i]) * 4;
+    }
+
+    /**
+     * Makes sure the batch arrays can hold the given number of triangles
+     * @param capacity number of triangles the batch must hold
+     */
+    private void ensureBatchCapacity(int capacity) {
+        if (batchColors.length < capacity) {
+            batchOffsets = new int[capacity * 3];
+            batchColors = new int[capacity];
         }
+    }
 
-        //System.out.println(Arrays.toString(specular));
-        return specular;
-    }
-
-    /**
-     * Combination of the three lighting types (ambient, diffuse, specular) to
-     * form the Standard Computer Graphics Lighting Equation
-     * @param p0 first vertex of the polygon, going clockwise
-     * @param p1 second vertex of the polygon, going clockwise
-     * @param p2 third vertex of the polygon, going clockwise
-     * @param I_a intensity of the ambient light
-     * @param K_a ambient constant
-     * @param I_i intensity of the light source
-     * @param K_d diffuse constant
-     * @param K_s specular constant
-     * @param lights vectors corresponding to the light sources
-     * @param viewer vector corresponding to the viewer
-     * @return combined lighting values
-     */
-    private double[] flatShading(double[] p0, double[] p1, double[] p2, double[] I_a, double[] K_a,
-            double[] I_i, double[] K_d, double[] K_s, double[][] lights, double[] viewer) {
-        // I = Ia + Id + Is
-        double[] I = new double[3];
-        double[] ambient = flatAmbientLight(I_a, K_a);
-        for (int a = 0; a < ambient.length; a++) {
-            I[a] += ambient[a];
-        }
-        for (int i = 0; i < lights.length; i++) {
-            double[] diffuse = flatDiffuseLight(p0, p1, p2, I_i, K_d, lights[i]);
-            for (int d = 0; d < diffuse.length; d++) {
-                I[d] += diffuse[d];
+    /**
+     * Rasterizes the triangles collected in the batch in the order they were
+     * added. Large batches are binned into tiles and each tile is drawn by
+     * its own worker, which produces exactly the same pixels as drawing the
+     * whole batch on one thread since each tile sees its triangles in order
+     * @param m buffer holding the vertices of the triangles
+     * @param count number of triangles in the batch
+     * @param fill whether to fill the triangles or only draw their edges
+     * @param attributes color or normal of each vertex to interpolate
+     *        across filled triangles, or null to use the batch colors
+     * @param light lights to light each pixel with, or null if the
+     *        attributes are colors
+     */
+    private void drawBatch(final double[] m, int count, final boolean fill, final double[] attributes,
+            final Lighting light) {
+        if (sortTriangles) {
+            sortBatch(m, count);
+        }
+        ForkJoinPool workers = pool;
+        if (workers == null || count < PARALLEL_THRESHOLD) {
+            for (int t = 0; t < count; t++) {
+                drawTriangle(rasterizer, m, t, fill, attributes, light);
             }
+            return;
+        }
+        if (tiles == null) {
+            createTiles();
+        }
+        Arrays.fill(binSizes, 0);
+        for (int t = 0; t < count; t++) {
+            binTriangle(m, batchOffsets[t * 3], batchOffsets[t * 3 + 1], batchOffsets[t * 3 + 2], t);
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < tiles.length; i++) {
+            if (binSizes[i] > 0) {
+                final Rasterizer tile = tiles[i];
+                final int[] bin = bins[i];
+                final int binSize = binSizes[i];
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        for (int b = 0; b < binSize; b++) {
+                            drawTriangle(tile, m, bin[b], fill, attributes, light);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        try {
+            for (Future<Void> f : workers.invokeAll(tasks)) {
+                f.get();
+            }
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Draws one triangle of the batch
+     * @param r rasterizer to draw with
+     * @param m buffer holding the vertices of the triangles
+     * @param t index of the triangle in the batch
+     * @param fill whether to fill the triangle or only draw its edges
+     * @param attributes color or normal of each vertex, or null to use the
+     *        batch color
+     * @param light lights to light each pixel with, or null if the
+     *        attributes are colors
+     */
+    private void drawTriangle(Rasterizer r, double[] m, int t, boolean fill, double[] attributes, Lighting light) {
+        int p0 = batchOffsets[t * 3], p1 = batchOffsets[t * 3 + 1], p2 = batchOffsets[t * 3 + 2];
+        if (attributes == null) {
+            r.drawTriangle(m, p0, p1, p2, batchColors[t], fill);
+        }
+        else {
+            r.shadeTriangle(m, p0, p1, p2, attributes, light);
+        }
+    }
+
+    /**
+     * Reorders the triangles in the batch so the ones with the closest
+     * vertex come first. Each sort key packs the negated depth as a float
+     * above the triangle's index, so sorting plain longs sorts by depth and
+     * keeps triangles at the same depth in their original order
+     * @param m buffer holding the vertices of the triangles
+     * @param count number of triangles in the batch
+     */
+    private void sortBatch(double[] m, int count) {
+        if (batchOrder.length < count) {
+            batchOrder = new long[batchColors.length];
+            sortedOffsets = new int[batchOffsets.length];
+            sortedColors = new int[batchColors.length];
+        }
+        for (int t = 0; t < count; t++) {
+            double z = Math.max(m[batchOffsets[t * 3] + 2], Math.max(m[batchOffsets[t * 3 + 1] + 2], m[batchOffsets[t * 3 + 2] + 2]));
+            int bits = Float.floatToIntBits((float) -z);
+            bits ^= (bits >> 31) & 0x7FFFFFFF; // Makes negative floats order correctly as ints
+            batchOrder[t] = ((long) bits << 32) | t;
+        }
+        Arrays.sort(batchOrder, 0, count);
+        int[] offsets = sortedOffsets;
+        int[] colors = sortedColors;
+        for (int i = 0; i < count; i++) {
+            int t = (int) batchOrder[i];
+            offsets[i * 3] = batchOffsets[t * 3];
+            offsets[i * 3 + 1] = batchOffsets[t * 3 + 1];
+            offsets[i * 3 + 2] = batchOffsets[t * 3 + 2];
+            colors[i] = batchColors[t];
+        }
+        System.arraycopy(offsets, 0, batchOffsets, 0, count * 3);
+        System.arraycopy(colors, 0, batchColors, 0, count);
+    }
+
+    /**
+     * Adds a triangle to the bin of every tile its bounding box touches. The
+     * box is padded by a couple of pixels since the line algorithm can step
+     * just past the truncated vertex coordinates
+     * @param m buffer holding the vertices
+     * @param p0 offset of the first vertex
+     * @param p1 offset of the second vertex
+     * @param p2 offset of the third vertex
+     * @param t index of the triangle in the batch
+     */
+    private void binTriangle(double[] m, int p0, int p1, int p2, int t) {
+        double minX = Math.min(m[p0], Math.min(m[p1], m[p2]));
+        double maxX = Math.max(m[p0], Math.max(m[p1], m[p2]));
+        double minY = Math.min(m[p0 + 1], Math.min(m[p1 + 1], m[p2 + 1]));
+        double maxY = Math.max(m[p0 + 1], Math.max(m[p1 + 1], m[p2 + 1]));
+        if (maxX < -2 || maxY < -2 || minX > width + 1 || minY > height + 1) {
+            return; // Entirely off the frame
         }
-        for (int i = 0; i < lights.length; i++) {
-            double[] specular = flatSpecularLight(p0, p1, p2, I_i, K_s, lights[i], viewer);
-            for (int s = 0; s < specular.length; s++) {
-                I[s] += specular[s];
+        int tx0 = (int) Math.max(Math.floor(minX) - 2, 0) / TILE_SIZE;
+        int ty0 = (int) Math.max(Math.floor(minY) - 2, 0) / TILE_SIZE;
+        int tx1 = (int) Math.min(Math.ceil(maxX) + 2, width - 1) / TILE_SIZE;
+        int ty1 = (int) Math.min(Math.ceil(maxY) + 2, height - 1) / TILE_SIZE;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                int i = ty * tilesX + tx;
+                if (binSizes[i] == bins[i].length) {
+                    bins[i] = Arrays.copyOf(bins[i], bins[i].length * 2);
+                }
+                bins[i][binSizes[i]++] = t;
             }
         }
-        return I;
     }
 
     /**
      * Returns true or false depending on whether the face is visible or not
-     * when looking at the face from the front.
+     * when looking at the face from the front, which is when the z component
+     * of its normal points towards the viewer.
      * Note that the points given must be in counterclockwise order!
-     * @param p0 first vertex
-     * @param p1 second vertex
-     * @param p2 third vertex
+     * @param m buffer holding the vertices
+     * @param p0 offset of the first vertex
+     * @param p1 offset of the second vertex
+     * @param p2 offset of the third vertex
+     */
+    private static boolean isVisible(double[] m, int p0, int p1, int p2) {
+        double ax = m[p0] - m[p1], ay = m[p0 + 1] - m[p1 + 1];
+        double bx = m[p0] - m[p2], by = m[p0 + 1] - m[p2 + 1];
+        return ax * by - ay * bx > 0;
+    }
+
+    /**
+     * Returns true if the front of a triangle faces the viewer. Without a
+     * camera this is isVisible. With one, the normal of the triangle must
+     * point back towards the camera, which also works for triangles that
+     * reach behind it and cannot be projected
+     * @param m buffer holding the vertices, relative to the camera if there
+     *        is one
+     * @param p0 offset of the first vertex
+     * @param p1 offset of the second vertex
+     * @param p2 offset of the third vertex
+     */
+    private boolean isFacing(double[] m, int p0, int p1, int p2) {
+        if (camera == null) {
+            return isVisible(m, p0, p1, p2);
+        }
+        double ax = m[p0] - m[p1], ay = m[p0 + 1] - m[p1 + 1], az = m[p0 + 2] - m[p1 + 2];
+        double bx = m[p0] - m[p2], by = m[p0 + 1] - m[p2 + 1], bz = m[p0 + 2] - m[p2 + 2];
+        return (ay * bz - az * by) * m[p0] + (az * bx - ax * bz) * m[p0 + 1] + (ax * by - ay * bx) * m[p0 + 2] < 0;
+    }
+
+    /**
+     * Works out which edges of the frame and of the guard band a projected
+     * vertex is past, and whether it is behind the near plane of the camera.
+     * Coordinates are truncated towards zero when lines are drawn, so a
+     * vertex is only past the left or bottom edge from -1 on
+     * @param s buffer holding the projected vertices
+     * @param p offset of the vertex
+     * @return bits of LEFT, RIGHT, BELOW, ABOVE, OUTSIDE_GUARD_BAND, and
+     *         BEHIND, which is set on its own since a vertex behind the near
+     *         plane has no place on the frame
+     */
+    private int outcode(double[] s, int p) {
+        if (camera != null && s[p + 3] < Camera.NEAR) {
+            return BEHIND;
+        }
+        double x = s[p], y = s[p + 1];
+        int code = 0;
+        if (x <= -1) {
+            code |= LEFT;
+        }
+        else if (x >= width) {
+            code |= RIGHT;
+        }
+        if (y <= -1) {
+            code |= BELOW;
+        }
+        else if (y >= height) {
+            code |= ABOVE;
+        }
+        if (!(x >= -GUARD_BAND && x <= width + GUARD_BAND && y >= -GUARD_BAND && y <= height + GUARD_BAND)) {
+            code |= OUTSIDE_GUARD_BAND;
+        }
+        return code;
+    }
+
+    /**
+     * Decides what a triangle needs before it is rasterized. A triangle
+     * whose vertices are all past the same edge of the frame, or all behind
+     * the camera, can be skipped. One that reaches behind the camera or past
+     * the guard band must be clipped. Anything else is drawn as is, since
+     * the rasterizer never visits pixels off the frame, and the guard band
+     * keeps its coordinates small enough for it to work with exactly
+     * @param s buffer holding the projected vertices
+     * @param p0 offset of the first vertex
+     * @param p1 offset of the second vertex
+     * @param p2 offset of the third vertex
+     * @return ACCEPT, REJECT, or CLIP
      */
-    private boolean isVisible(double[] p0, double[] p1, double[] p2) {
-        // v1 is the vector from p0 to p1
-        double[] v1 = new double[] { p0[0] - p1[0], p0[1] - p1[1], p0[2] - p1[2] };
-        // v2 is the vector from p0 to p2
-        double[] v2 = new double[] { p0[0] - p2[0], p0[1] - p2[1], p0[2] - p2[2] };
-        double[] surfaceNormal = GMath.crossProduct(v1, v2);
-        double[] viewVector = new double[] { 0, 0, -1 };
-        double cosAngle = GMath.dotProduct(surfaceNormal, viewVector) / (GMath.getMagnitude(surfaceNormal) * GMath.getMagnitude(viewVector));
-        if (cosAngle < 0) { // Angle is from 90 to 270 degrees (viewable)
-            return true;
+    private int classify(double[] s, int p0, int p1, int p2) {
+        int c0 = outcode(s, p0), c1 = outcode(s, p1), c2 = outcode(s, p2);
+        if ((c0 & c1 & c2) != 0) {
+            return REJECT;
         }
-        else { // Angle is either less than 0 or greater than 270
-            return false;
+        return ((c0 | c1 | c2) & (OUTSIDE_GUARD_BAND | BEHIND)) != 0 ? CLIP : ACCEPT;
+    }
+
+    /**
+     * Checks whether anything inside a box could be drawn on the frame.
+     * Coordinates are truncated towards zero when lines are drawn, so
+     * anything past -1 may still reach the first row or column. With a
+     * camera, the box is relative to the camera
+     * @param bounds minimum x, y, z followed by maximum x, y, z
+     * @return false if everything in the box is off the frame
+     */
+    public boolean overlaps(double[] bounds) {
+        if (camera != null) {
+            return camera.overlaps(bounds, width, height);
         }
+        return bounds[3] > -1 && bounds[0] < width && bounds[4] > -1 && bounds[1] < height;
     }
 
     /**
@@ -404,111 +803,29 @@ public class Frame {
      * @param c color of the line to be drawn
      */
     public void drawLine(int x0, int y0, double z0, int x1, int y1, double z1, Color c) {
-        plot(x0, y0, z0, c);
-        if (x0 > x1) { // Swap coordinates so our loop goes from left to right
-            int temp;
-            temp = x0;
-            x0 = x1;
-            x1 = temp;
-            temp = y0;
-            y0 = y1;
-            y1 = temp;
-        }
-        double slope = (double) (y1 - y0) / (double) (x1 - x0);
-        double dz;
-        int x = x0;
-        int y = y0;
-        double z = z0;
-        int A = 2 * (y1 - y0);
-        int B = -2 * (x1 - x0);
-        int d;
-        if (slope > 1) { // Line is above diagonal in Quadrant I
-            /** @formatter:off
-             * d0 = f(x0, y0) = A(x0) + B(x0) + C = 0
-             * d1 = f(x0+1/2, y0+1)
-             *    = A(x0) + 1/2A + B(x0) + B + C
-             *    = 0 + 1/2A + B
-             */
-            dz = (double) (z1 - z0) / (double) (y1 - y0);
-            d = A / 2 + B;
-            while (y <= y1) {
-                plot(x, y, z, c);
-                if (d < 0) { // Point is to the right of the midpoint
-                    x++;
-                    d += A;
-                }
-                y++;
-                d += B;
-                z += dz;
-            }
-        }
-        else if (slope >= 0 && slope <= 1) { // Line is below diagonal in Quadrant I
-            /** @formatter:off
-             * d0 = f(x0, y0) = A(x0) + B(x0) + C = 0
-             * d1 = f(x0+1, y0+1/2)
-             *    = A(x0) + A + B(x0) + 1/2B + C
-             *    = 0 + A + 1/2B
-             */
-            dz = (double) (z1 - z0) / (double) (x1 - x0);
-            d = A + B / 2;
-            while (x <= x1) {
-                plot(x, y, z, c);
-                if (d > 0) { // Point is above the midpoint
-                    y++;
-                    d += B;
-                }
-                x++;
-                d += A;
-                z += dz;
-            }
-        }
-        else if (slope >= -1 && slope <= 0) { // Line is above the diagonal in Quadrant IV
-            /** @formatter:off
-             * d0 = f(x0, y0) = A(x0) + B(x0) + C = 0
-             * d1 = f(x0+1, y0-1/2)
-             *    = A(x0) + A + B(x0) - 1/2B + C
-             *    = 0 + A - 1/2B
-             */
-            dz = (double) (z1 - z0) / (double) (x1 - x0);
-            d = A - B / 2;
-            while (x <= x1) {
-                plot(x, y, z, c);
-                if (d < 0) { // Point is below the midpoint
-                    y--;
-                    d -= B;
-                }
-                x++;
-                d += A;
-                z += dz;
-            }
-        }
-        else if (slope < -1) { // Line is below the diagonal in Quadrant IV
-            /** @formatter:off
-             * d0 = f(x0, y0) = A(x0) + B(x0) + C = 0
-             * d1 = f(x0+1/2, y0-1)
-             *    = A(x0) + 1/2A + B(x0) - B + C
-             *    = 0 + 1/2A - B
-             */
-            dz = (double) (z1 - z0) / (double) (y1 - y0);
-            d = A / 2 - B;
-            while (y >= y1) {
-                plot(x, y, z, c);
-                if (d > 0) { // Point is to the right of the midpoint
-                    x++;
-                    d += A;
-                }
-                y--;
-                d -= B;
-                z += dz;
-            }
-        }
+        drawLine(x0, y0, z0, x1, y1, z1, c.getRGB());
+    }
+
+    /**
+     * Draws a line between the points with given coordinates using the
+     * given packed RGB color. Origin is at the bottom left
+     * @param x0 x-coordinate of the starting point
+     * @param y0 y-coordinate of the starting point
+     * @param z0 z-coordinate of the starting point
+     * @param x1 x-coordinate of the ending point
+     * @param y1 y-coordinate of the ending point
+     * @param z1 z-coordinate of the ending point
+     * @param c packed color of the line to be drawn
+     */
+    public void drawLine(int x0, int y0, double z0, int x1, int y1, double z1, int c) {
+        rasterizer.drawLine(x0, y0, z0, x1, y1, z1, c);
     }
 
     /**
      * Clears the frame and restores it back to original condition
      */
     public void clearFrame() {
-        createFrame(width, height, frameColor);
+        fillFrame();
     }
 
     /**
@@ -536,32 +853,36 @@ public class Frame {
 
     /**
      * Saves the frame into a PPM file which can be viewed later using a
-     * program such as ImageMagick
+     * program such as ImageMagick. The file is binary (P6) unless ASCII
+     * output has been turned on with FrameWriter.setAsciiPpm
      * @param filename name of the file to save image to
      */
     public void savePpm(String filename) {
-        String ppmHeader = "P3\n" + width + " " + height + "\n255\n";
+        System.out.println("Saving image to " + filename);
         try {
-            System.out.println("Saving image to " + filename);
-            File file = new File(filename);
-            BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-            writer.write(ppmHeader);
-            for (int j = 0; j < height; j++) {
-                for (int i = 0; i < width; i++) {
-                    writer.write(frame[j][i] + " ");
-                }
-                writer.write("\n");
-            }
-            writer.close();
+            FrameWriter.writePpm(frame, width, height, filename);
         }
         catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Takes an immutable copy of the frame as it is right now
+     * @param format format to save the copy in, such as "ppm" or "png"
+     * @param filename name of the file to save the copy to
+     * @return snapshot of the frame
+     */
+    public FrameSnapshot snapshot(String format, String filename) {
+        return new FrameSnapshot(frame.clone(), width, height, format, filename,
+                System.nanoTime() - renderStart);
+    }
+
     /**
      * Saves the frame into an image based on the extension given. If no
-     * extension is given, the output defaults to .png
+     * extension is given, the output defaults to .png. The frame is copied
+     * and written out in the background by FrameWriter, so drawing can carry
+     * on right away
      * @param filename name of the file to save image to
      */
     public void saveImage(String filename) {
@@ -573,30 +894,9 @@ public class Frame {
         else {
             extension = ".png"; // Adds .png file extension if no file extension given
         }
-        if (extension.equals(".ppm")) {
-            savePpm(filename + ".ppm");
-        }
-        else {
-            String ppmFile = filename + "_TEMP.ppm";
-            savePpm(ppmFile);
-            filename += extension;
-            try {
-                System.out.println("Converting " + ppmFile + " to " + filename);
-                ProcessBuilder pb = new ProcessBuilder("convert", ppmFile, filename).inheritIO();
-                Process p = pb.start(); //Runtime.getRuntime().exec("convert " + ppmFile + " " + filename);
-                try {
-                    p.waitFor(); // Have to wait for command to finish or else you won't get your .png files since the .ppm files will have been deleted
-                }
-                catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                File file = new File(ppmFile);
-                file.delete();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        filename += extension;
+        System.out.println("Saving image to " + filename);
+        FrameWriter.submit(snapshot(extension.substring(1), filename));
     }
 
     /**
@@ -0,0 +1,62 @@
+/**
+ * An immutable copy of a finished frame waiting to be written out, along with
+ * what is needed to write it and how long it took to render.
+ */
+public final class FrameSnapshot {
+
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+    private final String format;
+    private final String filename;
+    private final long renderNanos;
+
+    /**
+     * Creates a snapshot that takes ownership of the given pixels, which must
+     * not be modified afterwards
+     * @param _pixels packed RGB pixels, stored row by row from the top
+     * @param _width width of the image in pixels
+     * @param _height height of the image in pixels
+     * @param _format format to save in, such as "ppm" or "png"
+     * @param _filename name of the file to save image to
+     * @param _renderNanos time spent rendering the frame in nanoseconds
+     */
+    public FrameSnapshot(int[] _pixels, int _width, int _height, String _format, String _filename,
+            long _renderNanos) {
+        pixels = _pixels;
+        width = _width;
+        height = _height;
+        format = _format;
+        filename = _filename;
+        renderNanos = _renderNanos;
+    }
+
+    /**
+     * Returns the pixels of the frame. They must not be modified
+     * @return packed RGB pixels, stored row by row from the top
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getRenderNanos() {
+        return renderNanos;
+    }
+
+}
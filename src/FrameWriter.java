@@ -0,0 +1,320 @@
+import java.awt.image.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.imageio.*;
+
+/**
+ * Writes finished frames out on background threads. Frames are handed over as
+ * immutable snapshots through a bounded queue, so rendering and writing overlap
+ * and the renderer only waits when the writers fall too far behind. PPM files
+ * are written directly, formats ImageIO knows are encoded in-process, and
+ * anything else is converted with ImageMagick.
+ */
+public class FrameWriter {
+
+    private static final FrameSnapshot DONE = new FrameSnapshot(new int[0], 0, 0, "", "", 0); // Tells a writer thread to stop
+    private static final int FRAMES_PER_WRITER = 2; // Frames that may wait in the queue for each writer thread
+
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static boolean asciiPpm = false; // Whether PPM files are written as P3 instead of P6
+    private static BlockingQueue<FrameSnapshot> queue;
+    private static Thread[] writers;
+
+    private static final AtomicInteger framesWritten = new AtomicInteger();
+    private static final Queue<String> framesFailed = new ConcurrentLinkedQueue<String>(); // Files that could not be written
+    private static final AtomicLong renderNanos = new AtomicLong();
+    private static final AtomicLong writeNanos = new AtomicLong();
+    private static final AtomicLong stallNanos = new AtomicLong(); // Time the renderer spent blocked on a full queue
+
+    private static final ThreadLocal<ByteBuffer> ppmBuffers = new ThreadLocal<ByteBuffer>(); // Reused between binary PPM writes
+
+    /**
+     * Sets how many threads write frames. Waits for any queued frames first
+     * @param _threads number of writer threads
+     */
+    public static synchronized void setThreads(int _threads) {
+        finish();
+        threads = Math.max(_threads, 1);
+    }
+
+    /**
+     * Sets whether PPM files are written in the ASCII (P3) format instead of
+     * the smaller and faster binary (P6) format
+     * @param ascii true to write P3 files
+     */
+    public static void setAsciiPpm(boolean ascii) {
+        asciiPpm = ascii;
+    }
+
+    /**
+     * Starts the writer threads if they are not already running
+     * @return queue feeding the writer threads
+     */
+    private static synchronized BlockingQueue<FrameSnapshot> start() {
+        if (writers == null) {
+            queue = new ArrayBlockingQueue<FrameSnapshot>(threads * FRAMES_PER_WRITER);
+            writers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final BlockingQueue<FrameSnapshot> frames = queue;
+                writers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        writeFrames(frames);
+                    }
+                }, "frame-writer-" + i);
+                writers[i].setDaemon(true);
+                writers[i].start();
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Takes snapshots off the queue and writes them until told to stop.
+     * Frames that fail to write are reported and left out of the timings
+     * @param frames queue to take snapshots from
+     */
+    private static void writeFrames(BlockingQueue<FrameSnapshot> frames) {
+        try {
+            while (true) {
+                FrameSnapshot snapshot = frames.take();
+                if (snapshot == DONE) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    write(snapshot);
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: Could not write " + snapshot.getFilename() + ": " + e.getMessage());
+                    framesFailed.add(snapshot.getFilename());
+                    continue;
+                }
+                long elapsed = System.nanoTime() - start;
+                framesWritten.incrementAndGet();
+                renderNanos.addAndGet(snapshot.getRenderNanos());
+                writeNanos.addAndGet(elapsed);
+                System.out.println(String.format("Wrote %s (render %.1f ms, write %.1f ms)",
+                        snapshot.getFilename(), snapshot.getRenderNanos() / 1e6, elapsed / 1e6));
+            }
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Queues a frame to be written on a writer thread. Blocks while the queue
+     * is full so the renderer cannot get arbitrarily far ahead of the writers
+     * @param snapshot frame to write
+     */
+    public static void submit(FrameSnapshot snapshot) {
+        BlockingQueue<FrameSnapshot> frames = start();
+        long start = System.nanoTime();
+        try {
+            frames.put(snapshot);
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        stallNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Waits for every queued frame to be written, stops the writer threads,
+     * and prints how long rendering and writing took along with any frames
+     * that could not be written. Frames submitted
+     * afterwards start the writers again
+     */
+    public static synchronized void finish() {
+        if (writers == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                queue.put(DONE);
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        writers = null;
+        queue = null;
+        int frames = framesWritten.getAndSet(0);
+        if (frames > 0) {
+            System.out.println(String.format(
+                    "Wrote %d frame(s): render %.1f ms, write %.1f ms, %.1f ms waiting on writers",
+                    frames, renderNanos.getAndSet(0) / 1e6, writeNanos.getAndSet(0) / 1e6,
+                    stallNanos.getAndSet(0) / 1e6));
+        }
+        if (!framesFailed.isEmpty()) {
+            StringBuilder failed = new StringBuilder();
+            int count = 0;
+            String filename;
+            while ((filename = framesFailed.poll()) != null) {
+                failed.append(count == 0 ? "" : ", ").append(filename);
+                count++;
+            }
+            System.out.println("ERROR: Could not write " + count + " frame(s): " + failed);
+        }
+    }
+
+    /**
+     * Checks whether ImageIO can encode the given format
+     * @param format informal format name such as "png" or "jpg"
+     * @return true if an encoder is available
+     */
+    public static boolean canWrite(String format) {
+        return ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+
+    /**
+     * Writes a snapshot on the calling thread in the format it asks for
+     * @param snapshot frame to write
+     */
+    public static void write(FrameSnapshot snapshot) throws IOException {
+        int[] pixels = snapshot.getPixels();
+        int width = snapshot.getWidth(), height = snapshot.getHeight();
+        String format = snapshot.getFormat();
+        String filename = snapshot.getFilename();
+        if (format.equals("ppm")) {
+            writePpm(pixels, width, height, filename);
+        }
+        else if (canWrite(format)) {
+            if (!ImageIO.write(toImage(pixels, width, height), format, new File(filename))) {
+                throw new IOException("No ImageIO writer for format " + format);
+            }
+        }
+        else {
+            convert(pixels, width, height, filename);
+        }
+    }
+
+    /**
+     * Saves the pixels to a temporary PPM file and runs ImageMagick's
+     * `convert` to turn it into the given file
+     * @param pixels packed RGB pixels, stored row by row from the top
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param filename name of the file to save image to
+     */
+    private static void convert(int[] pixels, int width, int height, String filename)
+            throws IOException {
+        String ppmFile = filename.substring(0, filename.lastIndexOf('.')) + "_TEMP.ppm";
+        writePpm(pixels, width, height, ppmFile);
+        System.out.println("Converting " + ppmFile + " to " + filename);
+        ProcessBuilder pb = new ProcessBuilder("convert", ppmFile, filename).inheritIO();
+        Process p = pb.start();
+        try {
+            p.waitFor(); // Have to wait for command to finish or else you won't get your files since the .ppm files will have been deleted
+        }
+        catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        File file = new File(ppmFile);
+        file.delete();
+    }
+
+    /**
+     * Wraps the given pixels in an image without copying them
+     * @param pixels packed RGB pixels, stored row by row from the top
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @return image backed by the pixels
+     */
+    public static BufferedImage toImage(int[] pixels, int width, int height) {
+        DirectColorModel model = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+        DataBufferInt buffer = new DataBufferInt(pixels, width * height);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width,
+                model.getMasks(), null);
+        return new BufferedImage(model, raster, false, null);
+    }
+
+    /**
+     * Saves the pixels into a PPM file. The file is binary (P6) unless ASCII
+     * output has been turned on with setAsciiPpm
+     * @param pixels packed RGB pixels, stored row by row from the top
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param filename name of the file to save image to
+     */
+    public static void writePpm(int[] pixels, int width, int height, String filename)
+            throws IOException {
+        if (asciiPpm) {
+            writeAsciiPpm(pixels, width, height, filename);
+        }
+        else {
+            writeBinaryPpm(pixels, width, height, filename);
+        }
+    }
+
+    /**
+     * Saves the pixels into a binary (P6) PPM file. The header and packed RGB
+     * bytes are gathered in a buffer that each thread keeps between writes
+     * and written through a FileChannel in one go
+     * @param pixels packed RGB pixels, stored row by row from the top
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param filename name of the file to save image to
+     */
+    public static void writeBinaryPpm(int[] pixels, int width, int height, String filename)
+            throws IOException {
+        byte[] ppmHeader = ("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII);
+        int size = ppmHeader.length + width * height * 3;
+        ByteBuffer buffer = ppmBuffers.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+            ppmBuffers.set(buffer);
+        }
+        byte[] bytes = buffer.array();
+        System.arraycopy(ppmHeader, 0, bytes, 0, ppmHeader.length);
+        int b = ppmHeader.length;
+        for (int i = 0; i < width * height; i++) {
+            int rgb = pixels[i];
+            bytes[b++] = (byte) (rgb >> 16);
+            bytes[b++] = (byte) (rgb >> 8);
+            bytes[b++] = (byte) rgb;
+        }
+        buffer.clear();
+        buffer.limit(size);
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Saves the pixels into an ASCII (P3) PPM file
+     * @param pixels packed RGB pixels, stored row by row from the top
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param filename name of the file to save image to
+     */
+    public static void writeAsciiPpm(int[] pixels, int width, int height, String filename)
+            throws IOException {
+        String ppmHeader = "P3\n" + width + " " + height + "\n255\n";
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(filename)))) {
+            writer.write(ppmHeader);
+            for (int j = 0; j < height; j++) {
+                int row = j * width;
+                for (int i = 0; i < width; i++) {
+                    int rgb = pixels[row + i];
+                    writer.write(((rgb >> 16) & 0xFF) + " " + ((rgb >> 8) & 0xFF) + " " + (rgb & 0xFF) + " ");
+                }
+                writer.write("\n");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+import java.util.*;
+
+/**
+ * A coarse depth buffer over the depth buffer of a Frame. It keeps the
+ * farthest depth in each 8x8 block of pixels, so a triangle that is no closer
+ * than that anywhere in a block can skip the block without testing any of its
+ * pixels. Blocks are counted from the bottom left like pixel coordinates, so
+ * they line up with the tiles of the parallel rasterizer and every block is
+ * only ever touched by one thread at a time.
+ *
+ * Depths only ever get closer, so an old depth for a block is still a safe,
+ * if loose, bound. A triangle that covers a whole block raises the block's
+ * depth to the triangle's farthest depth in it right away. Any other write
+ * only marks the block as dirty, and its depth is found again from its pixels
+ * when a whole triangle is tested against it.
+ */
+class HiZBuffer {
+
+    static final int BLOCK_BITS = 3;
+    static final int BLOCK_SIZE = 1 << BLOCK_BITS; // Width and height of a block in pixels
+
+    private final double[] zBuffer;
+    private final int width;
+    private final int height;
+    private final int blocksX;
+    private final double[] minDepth; // Farthest depth in each block, possibly out of date if dirty
+    private final boolean[] dirty; // Whether a block has been drawn on since its depth was found
+
+    /**
+     * Creates a coarse depth buffer over the given depth buffer
+     * @param _zBuffer depth of each pixel, stored row by row from the top
+     * @param _width width of the frame in pixels
+     * @param _height height of the frame in pixels
+     */
+    HiZBuffer(double[] _zBuffer, int _width, int _height) {
+        zBuffer = _zBuffer;
+        width = _width;
+        height = _height;
+        blocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int blocksY = (height + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        minDepth = new double[blocksX * blocksY];
+        dirty = new boolean[blocksX * blocksY];
+        clear();
+    }
+
+    /**
+     * Resets every block to match a cleared depth buffer
+     */
+    void clear() {
+        Arrays.fill(minDepth, Double.NEGATIVE_INFINITY);
+        Arrays.fill(dirty, false);
+    }
+
+    /**
+     * Marks a block as drawn on
+     * @param bx column of the block
+     * @param by row of the block, counted from the bottom
+     */
+    void markDirty(int bx, int by) {
+        dirty[by * blocksX + bx] = true;
+    }
+
+    /**
+     * Gets the last known farthest depth in a block without going through
+     * its pixels, which may be farther than the actual farthest depth
+     * @param bx column of the block
+     * @param by row of the block, counted from the bottom
+     * @return bound on the farthest depth in the block
+     */
+    double bound(int bx, int by) {
+        return minDepth[by * blocksX + bx];
+    }
+
+    /**
+     * Records that everything in a block is now at least as close as the
+     * given depth
+     * @param bx column of the block
+     * @param by row of the block, counted from the bottom
+     * @param z depth that every pixel in the block is at least as close as
+     */
+    void raise(int bx, int by, double z) {
+        int i = by * blocksX + bx;
+        minDepth[i] = Math.max(minDepth[i], z);
+    }
+
+    /**
+     * Gets the farthest depth of any pixel in a block, going through the
+     * block's pixels again if it has been drawn on since it was last asked
+     * for
+     * @param bx column of the block
+     * @param by row of the block, counted from the bottom
+     * @return farthest depth in the block
+     */
+    double minDepth(int bx, int by) {
+        int i = by * blocksX + bx;
+        if (dirty[i]) {
+            int x0 = bx << BLOCK_BITS, x1 = Math.min(x0 + BLOCK_SIZE, width);
+            int y0 = by << BLOCK_BITS, y1 = Math.min(y0 + BLOCK_SIZE, height);
+            double min = Double.POSITIVE_INFINITY;
+            for (int y = y0; y < y1; y++) {
+                int row = (height - 1 - y) * width;
+                for (int x = x0; x < x1; x++) {
+                    min = Math.min(min, zBuffer[row + x]);
+                }
+            }
+            minDepth[i] = min;
+            dirty[i] = false;
+        }
+        return minDepth[i];
+    }
+
+    /**
+     * Checks whether every pixel in a rectangle is already at least as close
+     * as the given depth, in which case nothing at that depth can be drawn
+     * there
+     * @param left leftmost column of the rectangle
+     * @param bottom bottommost row of the rectangle
+     * @param right rightmost column of the rectangle
+     * @param top topmost row of the rectangle
+     * @param z closest depth of what would be drawn
+     * @return true if nothing at the depth would show anywhere in the
+     *         rectangle
+     */
+    boolean occludes(int left, int bottom, int right, int top, double z) {
+        for (int by = bottom >> BLOCK_BITS; by <= top >> BLOCK_BITS; by++) {
+            for (int bx = left >> BLOCK_BITS; bx <= right >> BLOCK_BITS; bx++) {
+                if (minDepth(bx, by) < z) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+}
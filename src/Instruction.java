@@ -0,0 +1,51 @@
+/**
+ * One step of a compiled mdl script. MdlReader turns the parsed opcodes into
+ * an array of these once, resolving every name they refer to, so that each
+ * frame only has to switch on an int and read plain fields. Knobs are
+ * referred to by a slot in the array of knob values for the frame being
+ * drawn, and lighting constants by the constants themselves. Anything that
+ * does not depend on a knob is worked out ahead of time, down to the
+ * transformed points of shapes that come out the same in every frame.
+ */
+class Instruction {
+
+    static final int PUSH = 0;
+    static final int POP = 1;
+    static final int MOVE = 2; // args: x, y, z
+    static final int SCALE = 3; // args: x, y, z
+    static final int ROTATE = 4; // args: degrees
+    static final int BOX = 5; // args: x, y, z, width, height, depth
+    static final int SPHERE = 6; // args: x, y, z, radius
+    static final int TORUS = 7; // args: x, y, z, circle radius, torus radius
+    static final int LINE = 8; // args: x0, y0, z0, x1, y1, z1
+    static final int SHADING = 9;
+    static final int SAVE = 10;
+    static final int DISPLAY = 11;
+    static final int SET_TRANSFORM = 12; // Replaces the top of the origin stack with the matrix
+    static final int TRANSFORM = 13; // Composes the matrix onto the top of the origin stack
+    static final int MESH = 14; // args: bounds of the loaded mesh, minimum x, y, z then maximum x, y, z
+
+    final int op;
+    final double[] args;
+    int knob = -1; // Slot of the knob the args are scaled by, or -1 for none
+    char axis; // Axis of a rotation
+    double[][] constants; // Lighting constants of a shape, or null to draw it in a random color
+    int shading; // Shading constant from Frame set by a shading instruction
+    String name; // File a save instruction writes to
+    Transform matrix; // Transform of a folded run of transform instructions
+    Mesh source; // Untransformed geometry loaded by a mesh instruction
+    Mesh mesh; // Shape already transformed, if it is the same in every frame
+    EdgeMatrix edges; // Line already transformed, if it is the same in every frame
+    boolean culled; // Whether a shape that is the same in every frame is off the frame
+
+    /**
+     * Creates an instruction
+     * @param _op what the instruction does
+     * @param _args numbers the instruction works with
+     */
+    Instruction(int _op, double... _args) {
+        op = _op;
+        args = _args;
+    }
+
+}
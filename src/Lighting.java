@@ -0,0 +1,119 @@
+import java.util.*;
+
+/**
+ * The light sources and surface constants that shaded triangles are lit
+ * with. Light directions are normalized once when they are set, and lighting
+ * a normal only reads from this object, so the tiles of the parallel
+ * rasterizer can share it while they light pixels at the same time.
+ */
+class Lighting {
+
+    private double[] lightDirections = new double[0]; // Unit vector towards each light source, three values per light
+    private double[] I_a = new double[3]; // Intensity of the ambient light
+    private double[] K_a, K_d, K_s; // Ambient, diffuse, and specular constants
+    private double[] I_i; // Intensity of the light sources
+    private final double[] turned = new double[3]; // Light source turned by the view transform while it is being set
+
+    /**
+     * Sets the light sources, normalizing their directions
+     * @param lightSources vectors corresponding to the light sources
+     * @param view view transform of the camera to turn the lights with, or
+     *        null if there is no camera
+     */
+    void setLights(Collection<double[]> lightSources, Transform view) {
+        if (lightDirections.length != lightSources.size() * 3) {
+            lightDirections = new double[lightSources.size() * 3];
+        }
+        int l = 0;
+        for (double[] light : lightSources) {
+            if (view != null) {
+                view.applyDirection(light, turned);
+                light = turned;
+            }
+            double mag = Math.sqrt(light[0] * light[0] + light[1] * light[1] + light[2] * light[2]);
+            lightDirections[l] = light[0] / mag;
+            lightDirections[l + 1] = light[1] / mag;
+            lightDirections[l + 2] = light[2] / mag;
+            l += 3;
+        }
+    }
+
+    /**
+     * Sets the ambient light and the constants of the surface being lit
+     * @param ambient intensity of the ambient light
+     * @param constants ambient, diffuse, and specular constants, and the
+     *        intensity of the light sources
+     */
+    void setMaterial(double[] ambient, double[][] constants) {
+        I_a = ambient;
+        K_a = constants[0];
+        K_d = constants[1];
+        K_s = constants[2];
+        I_i = constants[3];
+    }
+
+    /**
+     * Combination of the three lighting types (ambient, diffuse, specular) to
+     * form the Standard Computer Graphics Lighting Equation,
+     * I = I_a*K_a + sum of I_i*K_d(L•N) + sum of I_i*K_s[(2N*(N•L)-L)•V]^n
+     * where L is the unit vector towards each light, N is the surface normal,
+     * and V is the viewer vector. The viewer looks down the z axis and n is 1,
+     * so the specular term is just the z component of the reflected light.
+     * Negative diffuse and specular terms are dropped
+     * @param nx x component of the surface normal, of any length
+     * @param ny y component of the surface normal, of any length
+     * @param nz z component of the surface normal, of any length
+     * @param color array to store the red, green and blue values in
+     * @param offset where in the array to store them
+     */
+    void light(double nx, double ny, double nz, double[] color, int offset) {
+        double mag = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        nx /= mag;
+        ny /= mag;
+        nz /= mag;
+
+        double r = I_a[0] * K_a[0];
+        double g = I_a[1] * K_a[1];
+        double b = I_a[2] * K_a[2];
+        double[] lights = lightDirections;
+        for (int l = 0; l < lights.length; l += 3) {
+            double dot = lights[l] * nx + lights[l + 1] * ny + lights[l + 2] * nz;
+            r += positive(I_i[0] * K_d[0] * dot);
+            g += positive(I_i[1] * K_d[1] * dot);
+            b += positive(I_i[2] * K_d[2] * dot);
+        }
+        for (int l = 0; l < lights.length; l += 3) {
+            double dot = lights[l] * nx + lights[l + 1] * ny + lights[l + 2] * nz;
+            double specular = nz * (dot * 2) - lights[l + 2];
+            r += positive(I_i[0] * K_s[0] * specular);
+            g += positive(I_i[1] * K_s[1] * specular);
+            b += positive(I_i[2] * K_s[2] * specular);
+        }
+        color[offset] = r;
+        color[offset + 1] = g;
+        color[offset + 2] = b;
+    }
+
+    /**
+     * Lights a surface and packs its color
+     * @param nx x component of the surface normal, of any length
+     * @param ny y component of the surface normal, of any length
+     * @param nz z component of the surface normal, of any length
+     * @param scratch array of at least three values to work in
+     * @return packed color of the lit surface
+     */
+    int shade(double nx, double ny, double nz, double[] scratch) {
+        light(nx, ny, nz, scratch, 0);
+        return Color.doubleToRGB(scratch[0], scratch[1], scratch[2]);
+    }
+
+    /**
+     * Drops a negative lighting term
+     * @param value lighting term
+     * @return the term, or 0 if it is negative
+     */
+    private static double positive(double value) {
+        return value < 0 ? 0 : value;
+    }
+
+}
@@ -10,11 +10,36 @@ public class Main {
         ArrayList<opCode> a;
         SymTab s;
         MdlParser parser;
-        String file;
-        if (args.length == 1)
-            file = args[0];
-        else
-            file = "test.mdl";
+        String file = "test.mdl";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--seed") && i + 1 < args.length) {
+                Color.setSeed(Long.parseLong(args[++i])); // Seeds the random colors for reproducible renders
+            }
+            else if (args[i].equals("--threads") && i + 1 < args.length) {
+                Frame.setThreads(Integer.parseInt(args[++i])); // Worker threads for the tiled rasterizer
+            }
+            else if (args[i].equals("--sort-triangles")) {
+                Frame.setSortTriangles(true); // Draws triangles front to back so more are skipped by the depth test
+            }
+            else if (args[i].equals("--ascii-ppm")) {
+                FrameWriter.setAsciiPpm(true); // Writes P3 instead of P6 PPM files
+            }
+            else if (args[i].equals("--writer-threads") && i + 1 < args.length) {
+                FrameWriter.setThreads(Integer.parseInt(args[++i])); // Threads writing finished frames
+            }
+            else if (args[i].equals("--frame-threads") && i + 1 < args.length) {
+                MdlReader.setFrameThreads(Integer.parseInt(args[++i])); // Animation frames rendered at once
+            }
+            else if (args[i].equals("--animation") && i + 1 < args.length) {
+                MdlReader.setAnimationFormat(args[++i]); // Streams animations into one gif or ppm file
+            }
+            else if (args[i].equals("--shading") && i + 1 < args.length) {
+                MdlReader.setShadingOverride(args[++i]); // Shades every shape the same way, to compare timings
+            }
+            else {
+                file = args[i];
+            }
+        }
         try {
             parser = new MdlParser(new FileReader(file));
         }
@@ -27,7 +52,12 @@ public class Main {
         s = parser.getSymTab();
 
         MdlReader mr = new MdlReader(a, s);
-        mr.process();
+        try {
+            mr.process();
+        }
+        finally {
+            FrameWriter.finish(); // Frames are written in the background
+        }
 
         //System.out.println("Opcodes:");
         //Iterator<opCode> i = a.iterator();
@@ -36,6 +36,7 @@
 // @formatter:on
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 import parser.*;
@@ -46,8 +47,9 @@ public class MdlReader {
     ArrayList<opCode> opcodes;
     SymTab symbols;
     Set<String> symKeys;
-    Stack<Matrix> origins;
+    Stack<Transform> origins;
     EdgeMatrix tmp;
+    Mesh mesh;
     Frame frame;
 
     boolean isAnimation = false;
@@ -56,7 +58,16 @@ public class MdlReader {
     String formatString;
     double[] ambientLighting;
 
+    static int frameThreads = Runtime.getRuntime().availableProcessors();
+    static String animationFormat; // Streams frames into a single file when set
+    static String shadingOverride; // Shading used instead of the script's shading commands when set
+    AnimationWriter animation;
+
     Hashtable<String, Double[]> knobs = new Hashtable<String, Double[]>();
+    Instruction[] program; // Opcodes compiled by compile()
+    double[][] knobValues; // Value of each knob slot in each frame
+    Camera camera; // Camera the script is drawn through, or null to draw it straight onto the frame
+    int initialShading; // Shading each frame starts with, from the shading override if there is one
     Hashtable<String, double[]> lights = new Hashtable<String, double[]>();
     Hashtable<String, double[][]> lightingConstants = new Hashtable<String, double[][]>();
 
@@ -66,11 +77,10 @@ public class MdlReader {
         symKeys = s.keySet();
 
         tmp = new EdgeMatrix();
+        mesh = new Mesh();
         frame = new Frame();
-        Matrix m = new Matrix(4);
-        m.identity();
-        origins = new Stack<Matrix>();
-        origins.push(m);
+        origins = new Stack<Transform>();
+        origins.push(new Transform());
     }
 
     /**
@@ -178,8 +188,10 @@ public class MdlReader {
                     knobs.put(((opVary) oc).getKnob(), knobValues);
                 }
             }
-            Utils.deleteDirectory(new File(basename));
-            new File(basename).mkdir();
+            if (animationFormat == null) {
+                Utils.deleteDirectory(new File(basename));
+                new File(basename).mkdir();
+            }
             int numLength = Integer.toString(numFrames).length();
             formatString = basename + "/" + basename + "-%0" + numLength + "d";
         }
@@ -230,175 +242,691 @@ public class MdlReader {
     public void process() throws ParseException {
         lightingPass();
         animationPass();
+        compile();
+        if (isAnimation && animationFormat != null) {
+            try {
+                animation = AnimationWriter.open(animationFormat, basename);
+            }
+            catch (IOException e) {
+                throw new ParseException("ERROR: Could not open animation " + basename + ": " + e.getMessage());
+            }
+        }
+        try {
+            if (isAnimation && frameThreads > 1 && numFrames > 1) {
+                if (!hasFrameOutput()) {
+                    processParallel();
+                    return;
+                }
+                System.out.println("WARNING: Rendering frames one at a time since save and display must run in order.");
+            }
+            for (int f = 0; f < numFrames; f++) {
+                reportCulled(f, renderFrame(f, frame, tmp, mesh, origins, new Random(Color.getSeed() + f)));
+                if (isAnimation) {
+                    saveFrame(f, frame);
+                    reset();
+                }
+            }
+        }
+        finally {
+            if (animation != null) {
+                try {
+                    animation.close();
+                }
+                catch (IOException e) {
+                    System.out.println("ERROR: Could not write animation: " + e.getMessage());
+                }
+                animation = null;
+            }
+        }
+    }
+
+    /**
+     * Saves a finished animation frame, either as its own image or as the
+     * next part of the streamed animation
+     * @param f number of the frame
+     * @param frame frame holding the finished image
+     */
+    private void saveFrame(int f, Frame frame) {
+        if (animation != null) {
+            animation.append(f, frame.snapshot(animationFormat, basename));
+        }
+        else {
+            frame.saveImage(String.format(formatString, f));
+        }
+    }
+
+    /**
+     * Renders every frame of the animation on a pool of worker threads. Each
+     * worker has its own frame, edge matrix, and origin stack, and saves each
+     * frame as soon as it is done
+     */
+    private void processParallel() throws ParseException {
+        final ThreadLocal<FrameContext> contexts = new ThreadLocal<FrameContext>() {
+            protected FrameContext initialValue() {
+                return new FrameContext();
+            }
+        };
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(frameThreads, numFrames));
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
         for (int f = 0; f < numFrames; f++) {
-            Iterator<opCode> i = opcodes.iterator();
-            opCode oc;
-            while (i.hasNext()) {
-                oc = (opCode) i.next();
-                //System.out.println(oc);
-                if (oc instanceof opPush) {
-                    Matrix top = origins.peek();
-                    origins.push(top.copy());
+            final int frameNumber = f;
+            results.add(workers.submit(new Callable<Void>() {
+                public Void call() throws ParseException {
+                    FrameContext context = contexts.get();
+                    context.reset();
+                    reportCulled(frameNumber, renderFrame(frameNumber, context.frame, context.tmp, context.mesh,
+                            context.origins, new Random(Color.getSeed() + frameNumber)));
+                    saveFrame(frameNumber, context.frame);
+                    return null;
                 }
-                else if (oc instanceof opPop) {
-                    origins.pop();
+            }));
+        }
+        try {
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks whether any opcode writes out the frame in the middle of
+     * processing, which would make frames rendered at the same time race
+     * @return true if there is a save or display command
+     */
+    private boolean hasFrameOutput() {
+        for (opCode oc : opcodes) {
+            if (oc instanceof opSave || oc instanceof opDisplay) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compiles the opcodes into the program that draws each frame. Every
+     * knob, lighting constant, and shading a command refers to is looked up
+     * here, once, and knob values are laid out as one array per frame
+     * indexed by knob slot
+     * @throws ParseException if a command refers to something that is not
+     *         defined for every frame
+     */
+    private void compile() throws ParseException {
+        Map<String, Integer> slots = new HashMap<String, Integer>();
+        List<String> slotNames = new ArrayList<String>();
+        List<Instruction> instructions = new ArrayList<Instruction>();
+        initialShading = shadingType(shadingOverride != null ? shadingOverride : "flat");
+        opCamera cameraCode = null;
+        opFocal focalCode = null;
+        for (opCode oc : opcodes) {
+            Instruction in = null;
+            if (oc instanceof opCamera) {
+                if (cameraCode != null) {
+                    System.out.println("WARNING: You are setting the camera multiple times.");
                 }
-                else if (oc instanceof opMove) {
-                    double[] values = ((opMove) oc).getValues();
-                    double x = values[0], y = values[1], z = values[2];
-                    if (((opMove) oc).getKnob() != null) {
-                        Double[] knobValues = knobs.get(((opMove) oc).getKnob());
-                        if (knobValues == null) {
-                            throw new ParseException(
-                                    "ERROR: You attempted to use knob '" + ((opMove) oc).getKnob() + "' without defining it.");
-                        }
-                        Double knobValue = knobValues[f];
-                        if (knobValue == null) {
-                            throw new ParseException(
-                                    "ERROR: The knob '" + ((opMove) oc).getKnob() + "' is not defined for frame " + f);
-                        }
-                        x *= knobValue;
-                        y *= knobValue;
-                        z *= knobValue;
-                    }
-                    Matrix temp = new Matrix();
-                    temp.makeTranslate(x, y, z);
-                    origins.peek().matrixMultiply(temp);
+                cameraCode = (opCamera) oc;
+            }
+            else if (oc instanceof opFocal) {
+                if (focalCode != null) {
+                    System.out.println("WARNING: You are setting the focal length multiple times.");
                 }
-                else if (oc instanceof opScale) {
-                    double[] values = ((opScale) oc).getValues();
-                    double x = values[0], y = values[1], z = values[2];
-                    if (((opScale) oc).getKnob() != null) {
-                        Double[] knobValues = knobs.get(((opScale) oc).getKnob());
-                        if (knobValues == null) {
-                            throw new ParseException(
-                                    "ERROR: You attempted to use knob '" + ((opScale) oc).getKnob() + "' without defining it.");
-                        }
-                        Double knobValue = knobValues[f];
-                        if (knobValue == null) {
-                            throw new ParseException(
-                                    "ERROR: The knob '" + ((opScale) oc).getKnob() + "' is not defined for frame " + f);
-                        }
-                        x *= knobValue;
-                        y *= knobValue;
-                        z *= knobValue;
-                    }
-                    Matrix temp = new Matrix();
-                    temp.makeScale(x, y, z);
-                    origins.peek().matrixMultiply(temp);
+                focalCode = (opFocal) oc;
+            }
+            else if (oc instanceof opPush) {
+                in = new Instruction(Instruction.PUSH);
+            }
+            else if (oc instanceof opPop) {
+                in = new Instruction(Instruction.POP);
+            }
+            else if (oc instanceof opMove) {
+                in = new Instruction(Instruction.MOVE, ((opMove) oc).getValues().clone());
+            }
+            else if (oc instanceof opScale) {
+                in = new Instruction(Instruction.SCALE, ((opScale) oc).getValues().clone());
+            }
+            else if (oc instanceof opRotate) {
+                in = new Instruction(Instruction.ROTATE, ((opRotate) oc).getDeg());
+                in.axis = ((opRotate) oc).getAxis();
+            }
+            else if (oc instanceof opBox) {
+                double[] loc = ((opBox) oc).getP1(), dim = ((opBox) oc).getP2();
+                in = new Instruction(Instruction.BOX, loc[0], loc[1], loc[2], dim[0], dim[1], dim[2]);
+            }
+            else if (oc instanceof opSphere) {
+                double[] center = ((opSphere) oc).getCenter();
+                in = new Instruction(Instruction.SPHERE, center[0], center[1], center[2], ((opSphere) oc).getR());
+            }
+            else if (oc instanceof opTorus) {
+                double[] center = ((opTorus) oc).getCenter();
+                in = new Instruction(Instruction.TORUS, center[0], center[1], center[2],
+                        ((opTorus) oc).getR(), ((opTorus) oc).getr());
+            }
+            else if (oc instanceof opMesh) {
+                in = new Instruction(Instruction.MESH, new double[6]);
+                in.source = loadMesh(((opMesh) oc).getFilename());
+                in.source.getBounds(in.args);
+            }
+            else if (oc instanceof opLine) {
+                double[] start = ((opLine) oc).getP1(), end = ((opLine) oc).getP2();
+                in = new Instruction(Instruction.LINE, start[0], start[1], start[2], end[0], end[1], end[2]);
+            }
+            else if (oc instanceof opShading) {
+                if (shadingOverride == null) {
+                    in = new Instruction(Instruction.SHADING);
+                    in.shading = shadingType(((opShading) oc).getType());
                 }
-                else if (oc instanceof opRotate) {
-                    char axis = ((opRotate) oc).getAxis();
-                    double degrees = ((opRotate) oc).getDeg();
-                    if (((opRotate) oc).getKnob() != null) {
-                        Double[] knobValues = knobs.get(((opRotate) oc).getKnob());
-                        if (knobValues == null) {
-                            throw new ParseException(
-                                    "ERROR: You attempted to use knob '" + ((opRotate) oc).getKnob() + "' without defining it.");
-                        }
-                        Double knobValue = knobValues[f];
-                        if (knobValue == null) {
-                            throw new ParseException(
-                                    "ERROR: The knob '" + ((opRotate) oc).getKnob() + "' is not defined for frame " + f);
-                        }
-                        degrees *= knobValue;
-                    }
-                    Matrix temp = new Matrix();
-                    switch (axis) {
-                        case 'x':
-                            temp.makeRotX(degrees);
-                            break;
-                        case 'y':
-                            temp.makeRotY(degrees);
-                            break;
-                        case 'z':
-                            temp.makeRotZ(degrees);
-                            break;
-                    }
-                    origins.peek().matrixMultiply(temp);
+            }
+            else if (oc instanceof opSave) {
+                in = new Instruction(Instruction.SAVE);
+                in.name = ((opSave) oc).getName();
+            }
+            else if (oc instanceof opDisplay) {
+                in = new Instruction(Instruction.DISPLAY);
+            }
+            if (in == null) {
+                continue;
+            }
+            if (oc instanceof opTrans && ((opTrans) oc).getKnob() != null) {
+                String knob = ((opTrans) oc).getKnob();
+                Integer slot = slots.get(knob);
+                if (slot == null) {
+                    checkKnob(knob);
+                    slot = slotNames.size();
+                    slots.put(knob, slot);
+                    slotNames.add(knob);
                 }
-                else if (oc instanceof opBox) {
-                    opBox opB = (opBox) oc;
-                    double loc[] = opB.getP1();
-                    double x = loc[0], y = loc[1], z = loc[2];
-                    double dim[] = opB.getP2();
-                    double l = dim[0], h = dim[1], d = dim[2];
-                    tmp.addPrism(x, y, z, l, h, d);
-                    tmp.matrixMultiply(origins.peek().transpose());
-                    if (opB.getConstants() == null) {
-                        frame.drawPolygons(tmp, new Color());
-                    }
-                    else {
-                        double[][] constants = lightingConstants.get(opB.getConstants());
-                        frame.drawShadedPolygons(tmp, ambientLighting, constants, lights.values());
-                    }
-                    tmp.clear();
+                in.knob = slot;
+            }
+            if (oc instanceof opShape && ((opShape) oc).getConstants() != null) {
+                String name = ((opShape) oc).getConstants();
+                in.constants = lightingConstants.get(name);
+                if (in.constants == null) {
+                    throw new ParseException("ERROR: You attempted to use lighting constants '" + name + "' without defining them.");
                 }
-                else if (oc instanceof opSphere) {
-                    opSphere opS = (opSphere) oc;
-                    double center[] = opS.getCenter();
-                    double cx = center[0], cy = center[1], cz = center[2];
-                    double r = opS.getR();
-                    tmp.addSphere(cx, cy, cz, r);
-                    tmp.matrixMultiply(origins.peek().transpose());
-                    if (opS.getConstants() == null) {
-                        frame.drawPolygons(tmp, new Color());
-                    }
-                    else {
-                        double[][] constants = lightingConstants.get(opS.getConstants());
-                        frame.drawShadedPolygons(tmp, ambientLighting, constants, lights.values());
-                    }
-                    tmp.clear();
+            }
+            instructions.add(in);
+        }
+        if (cameraCode != null) {
+            double focal = focalCode != null ? focalCode.getValue() : frame.width; // About 53 degrees across by default
+            if (focal <= 0) {
+                throw new ParseException("ERROR: The focal length must be greater than 0.");
+            }
+            camera = new Camera(cameraCode.getEye(), cameraCode.getAim(), focal, frame.width, frame.height);
+        }
+        else if (focalCode != null) {
+            System.out.println("WARNING: The focal length is ignored without a camera.");
+        }
+        frame.setCamera(camera);
+        instructions = foldStatic(instructions);
+        program = instructions.toArray(new Instruction[instructions.size()]);
+        knobValues = new double[numFrames][slotNames.size()];
+        for (int slot = 0; slot < slotNames.size(); slot++) {
+            Double[] values = knobs.get(slotNames.get(slot));
+            for (int f = 0; f < numFrames; f++) {
+                knobValues[f][slot] = values[f];
+            }
+        }
+    }
+
+    /**
+     * Works out ahead of time everything in the program that does not depend
+     * on a knob. Going through the program while keeping track of the origin
+     * stack, a transform is static as long as nothing that made it used a
+     * knob. Transform instructions applied to a static transform become a
+     * single instruction that sets the transform it ends up as, computed the
+     * same way it would be in each frame. Shapes and lines drawn with a
+     * static transform are generated and transformed here, and only drawn in
+     * each frame. Runs of transform instructions without knobs applied to a
+     * transform that does depend on one are composed into one matrix
+     * @param instructions compiled program
+     * @return program with the static parts folded
+     */
+    private List<Instruction> foldStatic(List<Instruction> instructions) {
+        List<Instruction> folded = new ArrayList<Instruction>();
+        Stack<Transform> stack = new Stack<Transform>(); // Known value of each transform, or null if it uses a knob
+        stack.push(new Transform());
+        double[] bounds = new double[6];
+        Transform view = new Transform();
+        for (Instruction in : instructions) {
+            Instruction last = folded.isEmpty() ? null : folded.get(folded.size() - 1);
+            Transform top = stack.isEmpty() ? null : stack.peek();
+            boolean transform = in.op == Instruction.MOVE || in.op == Instruction.SCALE || in.op == Instruction.ROTATE;
+            if (in.op == Instruction.PUSH) {
+                stack.push(top == null ? null : top.copy());
+            }
+            else if (in.op == Instruction.POP) {
+                if (!stack.isEmpty()) {
+                    stack.pop();
                 }
-                else if (oc instanceof opTorus) {
-                    opTorus opT = (opTorus) oc;
-                    double center[] = opT.getCenter();
-                    double cx = center[0], cy = center[1], cz = center[2];
-                    double R = opT.getR(), r = opT.getr();
-                    tmp.addTorus(cx, cy, cz, R, r);
-                    tmp.matrixMultiply(origins.peek().transpose());
-                    if (opT.getConstants() == null) {
-                        frame.drawPolygons(tmp, new Color());
-                    }
-                    else {
-                        double[][] constants = lightingConstants.get(opT.getConstants());
-                        frame.drawShadedPolygons(tmp, ambientLighting, constants, lights.values());
-                    }
-                    tmp.clear();
+            }
+            else if (transform && in.knob >= 0) {
+                if (!stack.isEmpty()) {
+                    stack.pop();
+                    stack.push(null);
                 }
-                else if (oc instanceof opLine) {
-                    double[] start = ((opLine) oc).getP1();
-                    double x0 = start[0], y0 = start[1], z0 = start[2];
-                    double[] end = ((opLine) oc).getP2();
-                    double x1 = end[0], y1 = end[1], z1 = end[2];
-                    tmp.addEdge(x0, y0, z0, x1, y1, z1);
-                    tmp.matrixMultiply(origins.peek());
-                    frame.drawLines(tmp, new Color());
-                    tmp.clear();
+            }
+            else if (transform && top != null) {
+                applyTransform(in, top);
+                if (last == null || last.op != Instruction.SET_TRANSFORM) {
+                    last = new Instruction(Instruction.SET_TRANSFORM);
+                    last.matrix = new Transform();
+                    folded.add(last);
+                }
+                last.matrix.set(top);
+                continue;
+            }
+            else if (transform) {
+                if (last == null || last.op != Instruction.TRANSFORM) {
+                    last = new Instruction(Instruction.TRANSFORM);
+                    last.matrix = new Transform();
+                    folded.add(last);
+                }
+                applyTransform(in, last.matrix);
+                continue;
+            }
+            else if (in.op == Instruction.LINE && top != null) {
+                double[] a = in.args;
+                in.edges = new EdgeMatrix();
+                in.edges.addEdge(a[0], a[1], a[2], a[3], a[4], a[5]);
+                toCamera(top, view).apply(in.edges);
+            }
+            else if ((in.op == Instruction.BOX || in.op == Instruction.SPHERE || in.op == Instruction.TORUS
+                    || in.op == Instruction.MESH) && top != null) {
+                Transform t = toCamera(top, view);
+                if (isOffscreen(frame, t, bounds, in)) {
+                    in.culled = true;
                 }
-                else if (oc instanceof opSave) {
-                    String filename = ((opSave) oc).getName();
-                    frame.saveImage(filename);
+                else {
+                    in.mesh = new Mesh();
+                    addShape(in, in.mesh);
+                    t.apply(in.mesh);
                 }
-                else if (oc instanceof opDisplay) {
-                    frame.display();
+            }
+            folded.add(in);
+        }
+        return folded;
+    }
+
+    /**
+     * Finds the transform that takes a shape all the way to the camera, which
+     * is a single multiply onto the view transform per shape rather than any
+     * extra work per vertex
+     * @param top transform of the shape
+     * @param view transform to store the result in if there is a camera
+     * @return transform relative to the camera, which is top itself if there
+     *         is no camera
+     */
+    private Transform toCamera(Transform top, Transform view) {
+        if (camera == null) {
+            return top;
+        }
+        view.set(camera.getView());
+        view.multiply(top);
+        return view;
+    }
+
+    /**
+     * Composes a move, scale, or rotate instruction onto a transform
+     * @param in instruction to apply, scaled by its knob value if any
+     * @param t transform to compose onto
+     * @param k value of the instruction's knob, or 1 if it has none
+     */
+    private static void applyTransform(Instruction in, Transform t, double k) {
+        double[] a = in.args;
+        switch (in.op) {
+        case Instruction.MOVE:
+            t.translate(a[0] * k, a[1] * k, a[2] * k);
+            break;
+        case Instruction.SCALE:
+            t.scale(a[0] * k, a[1] * k, a[2] * k);
+            break;
+        case Instruction.ROTATE:
+            t.rotate(in.axis, a[0] * k);
+            break;
+        }
+    }
+
+    /**
+     * Composes a move, scale, or rotate instruction without a knob onto a
+     * transform
+     * @param in instruction to apply
+     * @param t transform to compose onto
+     */
+    private static void applyTransform(Instruction in, Transform t) {
+        applyTransform(in, t, 1);
+    }
+
+    /**
+     * Adds the shape of a box, sphere, torus, or mesh instruction to a mesh
+     * @param in instruction for the shape
+     * @param mesh mesh to add to
+     */
+    private static void addShape(Instruction in, Mesh mesh) {
+        double[] a = in.args;
+        switch (in.op) {
+        case Instruction.BOX:
+            mesh.addPrism(a[0], a[1], a[2], a[3], a[4], a[5]);
+            break;
+        case Instruction.SPHERE:
+            mesh.addSphere(a[0], a[1], a[2], a[3]);
+            break;
+        case Instruction.TORUS:
+            mesh.addTorus(a[0], a[1], a[2], a[3], a[4]);
+            break;
+        case Instruction.MESH:
+            mesh.addMesh(in.source, 0, 0, 0);
+            break;
+        }
+    }
+
+    /**
+     * Loads the geometry of a mesh command through the mesh cache, timing
+     * how long it takes
+     * @param filename name of the OBJ file to load
+     * @return mesh holding the file's vertices and triangles
+     * @throws ParseException if the file cannot be loaded
+     */
+    private static Mesh loadMesh(String filename) throws ParseException {
+        long start = System.nanoTime();
+        Mesh mesh;
+        try {
+            mesh = MeshCache.get(filename);
+        }
+        catch (IOException e) {
+            throw new ParseException("ERROR: Could not load mesh " + filename + ": " + e.getMessage());
+        }
+        System.out.println(String.format("Loaded %s (%d vertices, %d triangles, %.1f ms)", filename,
+                mesh.getVertexCount(), mesh.getTriangleCount(), (System.nanoTime() - start) / 1e6));
+        return mesh;
+    }
+
+    /**
+     * Makes sure a knob has a value in every frame
+     * @param knob name of the knob
+     * @throws ParseException if the knob is missing from any frame
+     */
+    private void checkKnob(String knob) throws ParseException {
+        Double[] values = knobs.get(knob);
+        if (values == null) {
+            throw new ParseException(
+                    "ERROR: You attempted to use knob '" + knob + "' without defining it.");
+        }
+        for (int f = 0; f < numFrames; f++) {
+            if (values[f] == null) {
+                throw new ParseException(
+                        "ERROR: The knob '" + knob + "' is not defined for frame " + f);
+            }
+        }
+    }
+
+    /**
+     * Runs the compiled program once to draw a single frame of the animation
+     * @param f number of the frame to draw
+     * @param frame frame to draw on
+     * @param tmp edge matrix to hold lines while they are drawn
+     * @param mesh mesh to hold shapes while they are drawn
+     * @param origins origin stack, starting with only the identity
+     * @param colors generator for the colors of unshaded shapes
+     * @return number of shapes skipped for being entirely off the frame
+     */
+    private int renderFrame(int f, Frame frame, EdgeMatrix tmp, Mesh mesh, Stack<Transform> origins,
+            Random colors) throws ParseException {
+        double[] knobs = knobValues[f];
+        double[] bounds = new double[6];
+        Transform view = new Transform();
+        int culled = 0;
+        frame.setCamera(camera);
+        frame.setLights(lights.values());
+        frame.setShading(initialShading);
+        for (Instruction in : program) {
+            switch (in.op) {
+            case Instruction.PUSH:
+                origins.push(origins.peek().copy());
+                break;
+            case Instruction.POP:
+                origins.pop();
+                break;
+            case Instruction.SET_TRANSFORM:
+                origins.peek().set(in.matrix);
+                break;
+            case Instruction.TRANSFORM:
+                origins.peek().multiply(in.matrix);
+                break;
+            case Instruction.MOVE:
+            case Instruction.SCALE:
+            case Instruction.ROTATE:
+                applyTransform(in, origins.peek(), in.knob < 0 ? 1 : knobs[in.knob]);
+                break;
+            case Instruction.BOX:
+            case Instruction.SPHERE:
+            case Instruction.TORUS:
+            case Instruction.MESH:
+                culled += drawShape(in, frame, bounds, mesh, toCamera(origins.peek(), view), colors);
+                break;
+            case Instruction.LINE:
+                if (in.edges != null) {
+                    frame.drawLines(in.edges, Color.randomRGB(colors));
                 }
+                else {
+                    double[] a = in.args;
+                    tmp.addEdge(a[0], a[1], a[2], a[3], a[4], a[5]);
+                    toCamera(origins.peek(), view).apply(tmp);
+                    frame.drawLines(tmp, Color.randomRGB(colors));
+                    tmp.clear();
+                }
+                break;
+            case Instruction.SHADING:
+                frame.setShading(in.shading);
+                break;
+            case Instruction.SAVE:
+                frame.saveImage(in.name);
+                break;
+            case Instruction.DISPLAY:
+                frame.display();
+                break;
             }
-            if (isAnimation) {
-                String filename = String.format(formatString, f);
-                frame.saveImage(filename);
-                reset();
+        }
+        return culled;
+    }
+
+    /**
+     * Draws a box, sphere, torus, or loaded mesh, either lit by its lighting constants or
+     * in the next random color. Shapes that are the same in every frame are
+     * drawn straight from their transformed mesh, and the rest are generated
+     * into the given mesh, transformed, and drawn. A shape that is skipped
+     * for being off the frame still uses up its random color so the colors
+     * of the shapes after it stay the same
+     * @param in instruction for the shape
+     * @param frame frame to draw on
+     * @param bounds array of 6 to work in
+     * @param mesh mesh to hold the shape while it is drawn
+     * @param t transform of the shape, relative to the camera if there is one
+     * @param colors generator for the colors of unshaded shapes
+     * @return 1 if the shape was skipped, otherwise 0
+     */
+    private int drawShape(Instruction in, Frame frame, double[] bounds, Mesh mesh, Transform t,
+            Random colors) {
+        Mesh shape = in.mesh;
+        if (shape == null && !in.culled && !isOffscreen(frame, t, bounds, in)) {
+            addShape(in, mesh);
+            t.apply(mesh);
+            shape = mesh;
+        }
+        if (shape == null) {
+            if (in.constants == null) {
+                Color.randomRGB(colors);
             }
+            return 1;
+        }
+        if (in.constants == null) {
+            frame.drawPolygons(shape, Color.randomRGB(colors));
+        }
+        else {
+            frame.drawShadedPolygons(shape, ambientLighting, in.constants);
+        }
+        mesh.clear();
+        return 0;
+    }
+
+    /**
+     * Looks up the shading named by a shading command. Wireframe and
+     * raytrace shading are in the spec but not drawn, so they fall back to
+     * flat shading with a warning
+     * @param type "flat", "goroud" (or "gouraud"), "phong", "wireframe", or
+     *        "raytrace"
+     * @return matching shading constant from Frame
+     * @throws ParseException if the shading is not one of those
+     */
+    private static int shadingType(String type) throws ParseException {
+        if (type.equals("flat")) {
+            return Frame.FLAT_SHADING;
+        }
+        else if (type.equals("goroud") || type.equals("gouraud")) {
+            return Frame.GOURAUD_SHADING;
+        }
+        else if (type.equals("phong")) {
+            return Frame.PHONG_SHADING;
+        }
+        else if (type.equals("wireframe") || type.equals("raytrace")) {
+            System.out.println("WARNING: " + type + " shading is not supported, so flat shading is used instead.");
+            return Frame.FLAT_SHADING;
+        }
+        throw new ParseException("ERROR: Unknown shading type '" + type + "'. Use flat, goroud, or phong.");
+    }
+
+    /**
+     * Prints how many shapes were skipped in a frame for being off the frame
+     * @param f number of the frame
+     * @param culled number of shapes skipped
+     */
+    private void reportCulled(int f, int culled) {
+        if (culled > 0) {
+            System.out.println("Skipped " + culled + " shapes outside of frame " + f);
         }
     }
 
+    /**
+     * Checks whether the shape of a box, sphere, torus, or mesh instruction lies
+     * entirely off the frame once transformed
+     * @param frame frame the shape would be drawn on
+     * @param t transformation applied to the shape
+     * @param bounds array of 6 to work in
+     * @param in instruction for the shape
+     * @return true if nothing of the shape would be drawn
+     */
+    private static boolean isOffscreen(Frame frame, Transform t, double[] bounds, Instruction in) {
+        double[] a = in.args;
+        switch (in.op) {
+        case Instruction.BOX:
+            return isOffscreen(frame, t, bounds, a[0], a[1], a[2] - a[5], a[0] + a[3], a[1] + a[4], a[2]);
+        case Instruction.SPHERE:
+            return isOffscreen(frame, t, bounds, a[0] - a[3], a[1] - a[3], a[2] - a[3],
+                    a[0] + a[3], a[1] + a[3], a[2] + a[3]);
+        case Instruction.MESH:
+            return isOffscreen(frame, t, bounds, a[0], a[1], a[2], a[3], a[4], a[5]);
+        default:
+            double extent = Math.abs(a[3]) + Math.abs(a[4]);
+            return isOffscreen(frame, t, bounds, a[0] - extent, a[1] - extent, a[2] - extent,
+                    a[0] + extent, a[1] + extent, a[2] + extent);
+        }
+    }
+
+    /**
+     * Checks whether a shape lies entirely off the frame once transformed,
+     * using the box around it so the shape itself never has to be generated
+     * @param frame frame the shape would be drawn on
+     * @param t transformation applied to the shape
+     * @param bounds array of 6 to work in
+     * @param minX smallest x-coordinate of the shape before transforming
+     * @param minY smallest y-coordinate of the shape before transforming
+     * @param minZ smallest z-coordinate of the shape before transforming
+     * @param maxX largest x-coordinate of the shape before transforming
+     * @param maxY largest y-coordinate of the shape before transforming
+     * @param maxZ largest z-coordinate of the shape before transforming
+     * @return true if nothing of the shape would be drawn
+     */
+    private static boolean isOffscreen(Frame frame, Transform t, double[] bounds, double minX, double minY,
+            double minZ, double maxX, double maxY, double maxZ) {
+        bounds[0] = Math.min(minX, maxX);
+        bounds[1] = Math.min(minY, maxY);
+        bounds[2] = Math.min(minZ, maxZ);
+        bounds[3] = Math.max(minX, maxX);
+        bounds[4] = Math.max(minY, maxY);
+        bounds[5] = Math.max(minZ, maxZ);
+        t.applyBounds(bounds);
+        return !frame.overlaps(bounds);
+    }
+
+    /**
+     * Sets how many animation frames are rendered at the same time
+     * @param threads number of frames to render at once, 1 or less to render
+     *        them in order on the calling thread
+     */
+    public static void setFrameThreads(int threads) {
+        frameThreads = threads;
+    }
+
+    /**
+     * Sets the format animations are streamed in instead of writing one image
+     * per frame
+     * @param format "gif" or "ppm" (see AnimationWriter.open), or null to
+     *        write one image per frame
+     */
+    public static void setAnimationFormat(String format) {
+        animationFormat = format;
+    }
+
+    /**
+     * Sets a shading to use for every shaded shape, ignoring the shading
+     * commands in the script, so that scenes can be timed with each shading
+     * @param type "flat", "goroud", or "phong", or null to follow the
+     *        script
+     */
+    public static void setShadingOverride(String type) {
+        shadingOverride = type;
+    }
+
     public void reset() {
         frame.clearFrame();
         tmp.clear();
+        mesh.clear();
         origins.clear();
-        Matrix m = new Matrix(4);
-        m.identity();
-        origins.push(m);
+        origins.push(new Transform());
+    }
+
+    /**
+     * Everything a worker needs to render a frame on its own
+     */
+    private static class FrameContext {
+
+        Frame frame = new Frame();
+        EdgeMatrix tmp = new EdgeMatrix();
+        Mesh mesh = new Mesh();
+        Stack<Transform> origins = new Stack<Transform>();
+
+        /**
+         * Clears the frame, edge matrix, and mesh and resets the origin stack
+         * to the identity
+         */
+        void reset() {
+            frame.clearFrame();
+            tmp.clear();
+            mesh.clear();
+            origins.clear();
+            origins.push(new Transform());
+        }
+
     }
 
 }
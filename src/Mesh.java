@@ -0,0 +1,468 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A triangle mesh stored as a buffer of unique vertices and a buffer of
+ * indices into it, three per triangle. Vertices shared by several triangles
+ * are stored, transformed, and lit only once, unlike in an EdgeMatrix where
+ * every triangle carries its own copy of each of its points.
+ */
+public class Mesh {
+
+    private static final double CIRCULAR_STEP_SIZE = 1.0 / 18;
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int POINT_SIZE = 4; // x, y, z, and the homogeneous coordinate
+    private static final ConcurrentMap<ShapeKey, Mesh> shapes = new ConcurrentHashMap<ShapeKey, Mesh>(); // Tessellated spheres and tori centered at the origin
+
+    private double[] vertices; // Vertices stored one after another as x, y, z, w
+    private int[] shared; // Index of the vertex each vertex shares its normal with, never after the vertex itself
+    private int vertexCount;
+    private int[] indices; // Three vertex indices per triangle, going counterclockwise
+    private int indexCount;
+
+    public Mesh() {
+        vertices = new double[DEFAULT_CAPACITY * POINT_SIZE];
+        shared = new int[DEFAULT_CAPACITY];
+        indices = new int[DEFAULT_CAPACITY * 3];
+    }
+
+    /**
+     * Creates a mesh around buffers that are already filled in, where no two
+     * vertices share a normal unless they share an index
+     * @param _vertices vertex buffer, laid out as x, y, z, w
+     * @param _vertexCount number of vertices in use
+     * @param _indices index buffer, three vertex indices per triangle
+     * @param triangleCount number of triangles in use
+     */
+    Mesh(double[] _vertices, int _vertexCount, int[] _indices, int triangleCount) {
+        vertices = _vertices;
+        vertexCount = _vertexCount;
+        indices = _indices;
+        indexCount = triangleCount * 3;
+        shared = new int[vertices.length / POINT_SIZE];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = i;
+        }
+    }
+
+    /**
+     * Makes sure the mesh can hold the given number of vertices and
+     * triangles, doubling its buffers as needed
+     * @param vertexCapacity number of vertices the mesh must hold
+     * @param triangleCapacity number of triangles the mesh must hold
+     */
+    public void ensureCapacity(int vertexCapacity, int triangleCapacity) {
+        if (vertexCapacity * POINT_SIZE > vertices.length) {
+            int newLength = vertices.length * 2;
+            while (newLength < vertexCapacity * POINT_SIZE) {
+                newLength *= 2;
+            }
+            vertices = Arrays.copyOf(vertices, newLength);
+            shared = Arrays.copyOf(shared, newLength / POINT_SIZE);
+        }
+        if (triangleCapacity * 3 > indices.length) {
+            int newLength = indices.length * 2;
+            while (newLength < triangleCapacity * 3) {
+                newLength *= 2;
+            }
+            indices = Arrays.copyOf(indices, newLength);
+        }
+    }
+
+    /**
+     * Adds a vertex to the mesh given x, y, z coordinates
+     * @param x x-coordinate of the vertex
+     * @param y y-coordinate of the vertex
+     * @param z z-coordinate of the vertex
+     * @return index of the new vertex
+     */
+    public int addVertex(double x, double y, double z) {
+        ensureCapacity(vertexCount + 1, 0);
+        int i = vertexCount * POINT_SIZE;
+        vertices[i] = x;
+        vertices[i + 1] = y;
+        vertices[i + 2] = z;
+        vertices[i + 3] = 1.0;
+        shared[vertexCount] = vertexCount;
+        return vertexCount++;
+    }
+
+    /**
+     * Adds a triangle between three vertices already in the mesh. Note that
+     * the vertices must be given in counterclockwise order when seen from the
+     * front
+     * @param v0 index of the first vertex
+     * @param v1 index of the second vertex
+     * @param v2 index of the third vertex
+     */
+    public void addTriangle(int v0, int v1, int v2) {
+        ensureCapacity(0, indexCount / 3 + 1);
+        indices[indexCount++] = v0;
+        indices[indexCount++] = v1;
+        indices[indexCount++] = v2;
+    }
+
+    /**
+     * Makes one vertex use the normal of another for smooth shading, for
+     * vertices that are at the same place, like the seam of a torus, but
+     * were added separately
+     * @param v index of the vertex
+     * @param with index of an earlier vertex at the same place
+     */
+    public void shareVertex(int v, int with) {
+        shared[v] = shared[with];
+    }
+
+    /**
+     * Clears all vertices and triangles in the mesh, keeping its buffers
+     */
+    public void clear() {
+        vertexCount = 0;
+        indexCount = 0;
+    }
+
+    /**
+     * Gets the vertex buffer, laid out as x, y, z, w. Only the first
+     * getVertexCount() vertices are in use
+     * @return vertex buffer
+     */
+    public double[] getVertices() {
+        return vertices;
+    }
+
+    /**
+     * Gets the number of vertices in the mesh
+     * @return number of vertices
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Gets the index of the vertex whose normal each vertex uses when
+     * shading smoothly. Every entry is at most its own index, and a vertex
+     * that shares with no earlier vertex holds its own index. Only the first
+     * getVertexCount() entries are in use
+     * @return shared vertex of each vertex
+     */
+    public int[] getSharedVertices() {
+        return shared;
+    }
+
+    /**
+     * Gets the index buffer, three vertex indices per triangle. Only the
+     * first getTriangleCount() triangles are in use
+     * @return index buffer
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Gets the number of triangles in the mesh
+     * @return number of triangles
+     */
+    public int getTriangleCount() {
+        return indexCount / 3;
+    }
+
+    /**
+     * Finds the smallest axis-aligned box around every vertex in the mesh
+     * @param bounds array of 6 to store minimum x, y, z followed by maximum
+     *        x, y, z in
+     */
+    public void getBounds(double[] bounds) {
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Double.POSITIVE_INFINITY;
+            bounds[i + 3] = Double.NEGATIVE_INFINITY;
+        }
+        int end = vertexCount * POINT_SIZE;
+        for (int v = 0; v < end; v += POINT_SIZE) {
+            for (int i = 0; i < 3; i++) {
+                bounds[i] = Math.min(bounds[i], vertices[v + i]);
+                bounds[i + 3] = Math.max(bounds[i + 3], vertices[v + i]);
+            }
+        }
+    }
+
+    /**
+     * Appends every vertex and triangle of another mesh, shifting its
+     * vertices by the given offsets
+     * @param mesh mesh to append
+     * @param x shift in the x-coordinate
+     * @param y shift in the y-coordinate
+     * @param z shift in the z-coordinate
+     */
+    public void addMesh(Mesh mesh, double x, double y, double z) {
+        ensureCapacity(vertexCount + mesh.vertexCount, (indexCount + mesh.indexCount) / 3);
+        int base = vertexCount;
+        int o = vertexCount * POINT_SIZE;
+        int end = mesh.vertexCount * POINT_SIZE;
+        for (int i = 0; i < end; i += POINT_SIZE, o += POINT_SIZE) {
+            vertices[o] = x + mesh.vertices[i];
+            vertices[o + 1] = y + mesh.vertices[i + 1];
+            vertices[o + 2] = z + mesh.vertices[i + 2];
+            vertices[o + 3] = 1.0;
+        }
+        for (int i = 0; i < mesh.vertexCount; i++) {
+            shared[base + i] = base + mesh.shared[i];
+        }
+        vertexCount += mesh.vertexCount;
+        for (int i = 0; i < mesh.indexCount; i++) {
+            indices[indexCount++] = base + mesh.indices[i];
+        }
+    }
+
+    /** @formatter:off
+     * Adds a rectangular prism to the mesh given coordinates that specify
+     * the upper-left-front corner of the prism and its dimensions. The
+     * triangles are the same, in the same order, as EdgeMatrix.addPrism.
+     * Each side gets its own four vertices so that smooth shading keeps the
+     * sides flat instead of rounding the edges between them
+     * @param x      x-coordinate of upper-left-front corner
+     * @param y      y-coordinate of upper-left-front corner
+     * @param z      z-coordinate of upper-left-front corner
+     * @param width  width of the rectangular prism
+     * @param height height of the rectangular prism
+     * @param depth  depth of the rectangular prism
+     */
+    public void addPrism(double x, double y, double z,
+                         double width, double height, double depth) {
+        double x1 = x + width;
+        double y1 = y + height;
+        double z1 = z - depth;
+        ensureCapacity(vertexCount + 24, indexCount / 3 + 12);
+        // Front side
+        addSide(addVertex(x, y1, z), addVertex(x, y, z), addVertex(x1, y, z), addVertex(x1, y1, z));
+        // Back side
+        addSide(addVertex(x1, y1, z1), addVertex(x1, y, z1), addVertex(x, y, z1), addVertex(x, y1, z1));
+        // Right side
+        addSide(addVertex(x1, y1, z), addVertex(x1, y, z), addVertex(x1, y, z1), addVertex(x1, y1, z1));
+        // Left side
+        addSide(addVertex(x, y1, z1), addVertex(x, y, z1), addVertex(x, y, z), addVertex(x, y1, z));
+        // Top side
+        addSide(addVertex(x, y1, z1), addVertex(x, y1, z), addVertex(x1, y1, z), addVertex(x1, y1, z1));
+        // Bottom side
+        addSide(addVertex(x1, y, z1), addVertex(x1, y, z), addVertex(x, y, z), addVertex(x, y, z1));
+    }
+
+    /**
+     * Adds the two triangles of a four-sided side, v0 v1 v2 and v0 v2 v3
+     * @param v0 index of the first corner
+     * @param v1 index of the second corner
+     * @param v2 index of the third corner
+     * @param v3 index of the fourth corner
+     */
+    private void addSide(int v0, int v1, int v2, int v3) {
+        addTriangle(v0, v1, v2);
+        addTriangle(v0, v2, v3);
+    }
+
+    /**
+     * Adds a sphere to the mesh given coordinates that specify the center
+     * and its radius
+     * @param cx x-coordinate of the center
+     * @param cy y-coordinate of the center
+     * @param cz z-coordinate of the center
+     * @param r radius of the sphere
+     */
+    public void addSphere(double cx, double cy, double cz, double r) {
+        addMesh(sphere(r, CIRCULAR_STEP_SIZE), cx, cy, cz);
+    }
+
+    /**
+     * Adds a torus to the mesh given coordinates that specify the center,
+     * the circle radius, and the torus radius
+     * @param cx x-coordinate of the center
+     * @param cy y-coordinate of the center
+     * @param cz z-coordinate of the center
+     * @param circleRadius radius of the circle being rotated
+     * @param torusRadius  radius of the rotation of circle
+     */
+    public void addTorus(double cx, double cy, double cz,
+                         double circleRadius, double torusRadius) {
+        addMesh(torus(circleRadius, torusRadius, CIRCULAR_STEP_SIZE), cx, cy, cz);
+    }
+
+    /**
+     * Gets a sphere centered at the origin, tessellating it only the first
+     * time it is asked for. The mesh is shared and must not be changed
+     * @param r radius of the sphere
+     * @param stepSize the size of the step to take
+     * @return mesh of the sphere
+     */
+    static Mesh sphere(double r, double stepSize) {
+        ShapeKey key = new ShapeKey(ShapeKey.SPHERE, stepSize, r, 0);
+        Mesh mesh = shapes.get(key);
+        if (mesh == null) {
+            mesh = tessellateSphere(r, stepSize);
+            shapes.putIfAbsent(key, mesh);
+        }
+        return mesh;
+    }
+
+    /**
+     * Gets a torus centered at the origin, tessellating it only the first
+     * time it is asked for. The mesh is shared and must not be changed
+     * @param circleRadius radius of the circle being rotated
+     * @param torusRadius  radius of the rotation of circle
+     * @param stepSize the size of the step to take
+     * @return mesh of the torus
+     */
+    static Mesh torus(double circleRadius, double torusRadius, double stepSize) {
+        ShapeKey key = new ShapeKey(ShapeKey.TORUS, stepSize, circleRadius, torusRadius);
+        Mesh mesh = shapes.get(key);
+        if (mesh == null) {
+            mesh = tessellateTorus(circleRadius, torusRadius, stepSize);
+            shapes.putIfAbsent(key, mesh);
+        }
+        return mesh;
+    }
+
+    /**
+     * Tessellates a sphere centered at the origin. The vertices are the grid
+     * of points from EdgeMatrix.generateSphere, and the last band of
+     * triangles wraps around to the first column of the grid
+     * @param r radius of the sphere
+     * @param stepSize the size of the step to take
+     * @return mesh of the sphere
+     */
+    private static Mesh tessellateSphere(double r, double stepSize) {
+        Mesh mesh = new Mesh();
+        mesh.addGrid(r, 0, stepSize, true);
+        int numSteps = TrigTable.steps(stepSize) + 1;
+        int latStop = numSteps - 1;
+        int longStop = numSteps - 1;
+        int index;
+        for (int lat=0; lat<latStop; lat++) {
+            for (int longt=0; longt<longStop; longt++) {
+                index = lat * numSteps + longt;
+                if (lat == latStop-1) { // This is referring to the last rotation, so that it connects with the first
+                    mesh.addTriangle(index, longt, longt+1);
+                    if (longt != longStop-1) { // We don't want it to draw the poles again
+                        mesh.addTriangle(longt+1, index+1, index);
+                    }
+                }
+                else {
+                    mesh.addTriangle(index, index+numSteps, index+numSteps+1);
+                    if (longt != longStop-1) { // We don't want it to draw the poles again
+                        mesh.addTriangle(index+numSteps+1, index+1, index);
+                    }
+                }
+            }
+        }
+        // Every circle starts and ends at the same two poles, and the last
+        // circle is back where the first one started
+        int steps = numSteps - 1;
+        for (int lat=1; lat<numSteps; lat++) {
+            for (int longt=0; longt<numSteps; longt++) {
+                if (lat == steps || longt == 0 || longt == steps) {
+                    mesh.shareVertex(lat * numSteps + longt, lat == steps ? longt : longt == 0 ? 0 : steps);
+                }
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * Tessellates a torus centered at the origin from the grid of points from
+     * EdgeMatrix.generateTorus
+     * @param circleRadius radius of the circle being rotated
+     * @param torusRadius  radius of the rotation of circle
+     * @param stepSize the size of the step to take
+     * @return mesh of the torus
+     */
+    private static Mesh tessellateTorus(double circleRadius, double torusRadius, double stepSize) {
+        Mesh mesh = new Mesh();
+        mesh.addGrid(circleRadius, torusRadius, stepSize, false);
+        int numSteps = TrigTable.steps(stepSize) + 1;
+        int latStop = numSteps - 1;
+        int longStop = numSteps - 1;
+        int index;
+        for (int lat=0; lat<latStop; lat++) {
+            for (int longt=0; longt<longStop; longt++) {
+                index = lat * numSteps + longt;
+                mesh.addTriangle(index, index+1, index+numSteps);
+                mesh.addTriangle(index+numSteps+1, index+numSteps, index+1);
+            }
+        }
+        // The last circle is back where the first one started, and every
+        // circle ends where it started
+        int steps = numSteps - 1;
+        for (int longt=0; longt<numSteps; longt++) {
+            mesh.shareVertex(steps * numSteps + longt, longt);
+        }
+        for (int lat=0; lat<numSteps; lat++) {
+            mesh.shareVertex(lat * numSteps + steps, lat * numSteps);
+        }
+        return mesh;
+    }
+
+    /**
+     * Adds the grid of points of a sphere or torus centered at the origin as
+     * vertices
+     * @param r0 radius of the sphere, or of the circle of the torus
+     * @param r1 radius of the rotation of the torus circle
+     * @param stepSize the size of the step to take
+     * @param sphere whether to generate a sphere or a torus
+     */
+    private void addGrid(double r0, double r1, double stepSize, boolean sphere) {
+        EdgeMatrix points = new EdgeMatrix();
+        if (sphere) {
+            points.generateSphere(0, 0, 0, r0, stepSize);
+        }
+        else {
+            points.generateTorus(0, 0, 0, r0, r1, stepSize);
+        }
+        int n = points.getRows();
+        ensureCapacity(vertexCount + n, 0);
+        System.arraycopy(points.getPoints(), 0, vertices, vertexCount * POINT_SIZE, n * POINT_SIZE);
+        for (int i = 0; i < n; i++) {
+            shared[vertexCount + i] = vertexCount + i;
+        }
+        vertexCount += n;
+    }
+
+    /**
+     * Identifies a tessellated shape in the shape cache. The radii are part
+     * of the key rather than scaled in afterwards so that cached shapes come
+     * out exactly as if they were generated in place
+     */
+    private static class ShapeKey {
+
+        static final int SPHERE = 0;
+        static final int TORUS = 1;
+
+        final int type;
+        final double stepSize;
+        final double r0, r1;
+
+        ShapeKey(int _type, double _stepSize, double _r0, double _r1) {
+            type = _type;
+            stepSize = _stepSize;
+            r0 = _r0;
+            r1 = _r1;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof ShapeKey)) {
+                return false;
+            }
+            ShapeKey k = (ShapeKey) o;
+            return type == k.type
+                && Double.compare(stepSize, k.stepSize) == 0
+                && Double.compare(r0, k.r0) == 0
+                && Double.compare(r1, k.r1) == 0;
+        }
+
+        public int hashCode() {
+            long h = type;
+            h = h * 31 + Double.doubleToLongBits(stepSize);
+            h = h * 31 + Double.doubleToLongBits(r0);
+            h = h * 31 + Double.doubleToLongBits(r1);
+            return (int) (h ^ (h >>> 32));
+        }
+
+    }
+
+}
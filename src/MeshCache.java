@@ -0,0 +1,186 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps loaded meshes so that each OBJ file is only parsed once. Meshes are
+ * kept in memory for as long as the program runs, keyed by the file's path
+ * and when it was last modified. The first time a file is parsed, its
+ * vertices and indices are also written next to it in a binary sidecar file
+ * (the OBJ file's name followed by .mesh), which later runs memory map and
+ * copy straight into a mesh without parsing anything. A sidecar is only used
+ * while the size and modification time it was written for still match the
+ * OBJ file, and is rewritten otherwise.
+ */
+public class MeshCache {
+
+    private static final int MAGIC = 0x4D455348; // "MESH", read back differently on a machine with the other byte order
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32; // Magic, version, source modification time and size, vertex and triangle counts
+    private static final int CHUNK_SIZE = 1 << 26; // Most bytes mapped or buffered at a time
+    private static final String SUFFIX = ".mesh";
+    private static final ConcurrentMap<String, Entry> meshes = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Gets the mesh of an OBJ file from memory, from its sidecar file, or by
+     * parsing it, whichever is available first. The mesh is shared and must
+     * not be changed
+     * @param filename name of the OBJ file
+     * @return mesh holding the file's vertices and triangles
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static Mesh get(String filename) throws IOException {
+        Path path = Paths.get(filename).toAbsolutePath().normalize();
+        if (!Files.exists(path)) {
+            throw new FileNotFoundException("No such file");
+        }
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        long size = Files.size(path);
+        String key = path.toString();
+        Entry entry = meshes.get(key);
+        if (entry != null && entry.modified == modified && entry.size == size) {
+            return entry.mesh;
+        }
+        Path sidecar = Paths.get(key + SUFFIX);
+        Mesh mesh = readSidecar(sidecar, modified, size);
+        if (mesh == null) {
+            mesh = ObjReader.read(filename);
+            try {
+                writeSidecar(sidecar, mesh, modified, size);
+            }
+            catch (IOException e) {
+                System.out.println("WARNING: Could not write mesh cache " + sidecar + ": " + e.getMessage());
+            }
+        }
+        meshes.put(key, new Entry(mesh, modified, size));
+        return mesh;
+    }
+
+    /**
+     * Reads a mesh from a sidecar file if it was written for the OBJ file as
+     * it is now
+     * @param sidecar path of the sidecar file
+     * @param modified when the OBJ file was last modified, in milliseconds
+     * @param size size of the OBJ file in bytes
+     * @return mesh from the sidecar, or null if there is no usable sidecar
+     * @throws IOException if the sidecar cannot be read
+     */
+    private static Mesh readSidecar(Path sidecar, long modified, long size) throws IOException {
+        if (!Files.exists(sidecar)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            header.order(ByteOrder.nativeOrder());
+            if (header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != modified || header.getLong() != size) {
+                return null;
+            }
+            int vertexCount = header.getInt();
+            int triangleCount = header.getInt();
+            if (vertexCount < 0 || triangleCount < 0
+                    || channel.size() != HEADER_SIZE + vertexCount * 32L + triangleCount * 12L) {
+                return null;
+            }
+            double[] vertices = new double[Math.max(vertexCount, 1) * 4];
+            int[] indices = new int[Math.max(triangleCount, 1) * 3];
+            long offset = HEADER_SIZE;
+            for (int i = 0; i < vertexCount * 4; ) {
+                int n = Math.min(vertexCount * 4 - i, CHUNK_SIZE / 8);
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, n * 8L);
+                chunk.order(ByteOrder.nativeOrder()).asDoubleBuffer().get(vertices, i, n);
+                offset += n * 8L;
+                i += n;
+            }
+            for (int i = 0; i < triangleCount * 3; ) {
+                int n = Math.min(triangleCount * 3 - i, CHUNK_SIZE / 4);
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, n * 4L);
+                chunk.order(ByteOrder.nativeOrder()).asIntBuffer().get(indices, i, n);
+                offset += n * 4L;
+                i += n;
+            }
+            return new Mesh(vertices, vertexCount, indices, triangleCount);
+        }
+    }
+
+    /**
+     * Writes a mesh to a sidecar file. The file is written under a temporary
+     * name and then moved into place, so a sidecar is never seen half written
+     * @param sidecar path of the sidecar file
+     * @param mesh mesh to write
+     * @param modified when the OBJ file was last modified, in milliseconds
+     * @param size size of the OBJ file in bytes
+     * @throws IOException if the sidecar cannot be written
+     */
+    private static void writeSidecar(Path sidecar, Mesh mesh, long modified, long size) throws IOException {
+        Path temp = Paths.get(sidecar + ".tmp");
+        long total = HEADER_SIZE + mesh.getVertexCount() * 32L + mesh.getTriangleCount() * 12L;
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(total, CHUNK_SIZE)).order(ByteOrder.nativeOrder());
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(modified).putLong(size);
+            buffer.putInt(mesh.getVertexCount()).putInt(mesh.getTriangleCount());
+            double[] vertices = mesh.getVertices();
+            for (int i = 0; i < mesh.getVertexCount() * 4; ) {
+                int n = Math.min(mesh.getVertexCount() * 4 - i, buffer.remaining() / 8);
+                if (n == 0) {
+                    flush(channel, buffer);
+                    continue;
+                }
+                buffer.asDoubleBuffer().put(vertices, i, n);
+                buffer.position(buffer.position() + n * 8);
+                i += n;
+            }
+            int[] indices = mesh.getIndices();
+            for (int i = 0; i < mesh.getTriangleCount() * 3; ) {
+                int n = Math.min(mesh.getTriangleCount() * 3 - i, buffer.remaining() / 4);
+                if (n == 0) {
+                    flush(channel, buffer);
+                    continue;
+                }
+                buffer.asIntBuffer().put(indices, i, n);
+                buffer.position(buffer.position() + n * 4);
+                i += n;
+            }
+            flush(channel, buffer);
+        }
+        Files.move(temp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes out everything in a buffer and empties it
+     * @param channel channel to write to
+     * @param buffer buffer to write
+     * @throws IOException if the write fails
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * A loaded mesh and the version of the file it was loaded from
+     */
+    private static class Entry {
+
+        final Mesh mesh;
+        final long modified;
+        final long size;
+
+        Entry(Mesh _mesh, long _modified, long _size) {
+            mesh = _mesh;
+            modified = _modified;
+            size = _size;
+        }
+
+    }
+
+}
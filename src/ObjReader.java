@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Loads the geometry of a Wavefront OBJ file into a Mesh. The file is memory
+ * mapped and parsed straight from its bytes, so no line or number is ever
+ * turned into a String, and every vertex and triangle goes directly into the
+ * mesh's buffers. Only vertices (v) and faces (f) are read. Faces may give
+ * their vertices as v, v/vt, v//vn, or v/vt/vn, with negative indices
+ * counting back from the last vertex read, and faces with more than three
+ * vertices are split into a fan of triangles around their first vertex.
+ */
+public class ObjReader {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    }; // Every power of ten that is exact as a double
+    private static final int MAX_DIGITS = 18; // Most significant digits that fit in a long
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private final String filename;
+    private int pos; // Offset of the next byte to read
+    private int line = 1; // Line of the next byte to read, for error messages
+
+    private ObjReader(ByteBuffer _buffer, String _filename) {
+        buffer = _buffer;
+        limit = _buffer.limit();
+        filename = _filename;
+    }
+
+    /**
+     * Loads an OBJ file into a new mesh
+     * @param filename name of the file to load
+     * @return mesh holding the file's vertices and triangles
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static Mesh read(String filename) throws IOException {
+        Mesh mesh = new Mesh();
+        read(filename, mesh);
+        return mesh;
+    }
+
+    /**
+     * Adds the vertices and triangles of an OBJ file to a mesh
+     * @param filename name of the file to load
+     * @param mesh mesh to add to
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public static void read(String filename, Mesh mesh) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(filename + " is too large to load");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            new ObjReader(buffer, filename).parse(mesh);
+        }
+        catch (NoSuchFileException e) {
+            throw new FileNotFoundException("No such file");
+        }
+    }
+
+    /**
+     * Reads every line of the file, keeping vertices and faces
+     * @param mesh mesh to add to
+     * @throws IOException if a vertex or face is malformed
+     */
+    private void parse(Mesh mesh) throws IOException {
+        int base = mesh.getVertexCount(); // Indices in the file start from here
+        while (pos < limit) {
+            skipSpaces();
+            if (pos + 1 < limit && isSpace(buffer.get(pos + 1))) {
+                byte command = buffer.get(pos);
+                if (command == 'v') {
+                    pos++;
+                    double x = readNumber();
+                    double y = readNumber();
+                    double z = readNumber();
+                    mesh.addVertex(x, y, z);
+                }
+                else if (command == 'f') {
+                    pos++;
+                    readFace(mesh, base);
+                }
+            }
+            skipLine();
+        }
+    }
+
+    /**
+     * Reads the vertices of a face and adds it to the mesh as a fan of
+     * triangles
+     * @param mesh mesh to add to
+     * @param base index in the mesh of the first vertex in the file
+     * @throws IOException if an index is malformed or out of range
+     */
+    private void readFace(Mesh mesh, int base) throws IOException {
+        int first = -1, previous = -1, count = 0;
+        while (true) {
+            skipSpaces();
+            if (pos >= limit || isEndOfLine(buffer.get(pos))) {
+                break;
+            }
+            int v = readIndex(mesh, base);
+            while (pos < limit && !isSpace(buffer.get(pos)) && !isEndOfLine(buffer.get(pos))) {
+                pos++; // Texture and normal indices are not used
+            }
+            if (count == 0) {
+                first = v;
+            }
+            else if (count >= 2) {
+                mesh.addTriangle(first, previous, v);
+            }
+            previous = v;
+            count++;
+        }
+        if (count < 3) {
+            throw error("A face needs at least 3 vertices");
+        }
+    }
+
+    /**
+     * Reads a vertex index and turns it into an index into the mesh
+     * @param mesh mesh the vertices were added to
+     * @param base index in the mesh of the first vertex in the file
+     * @return index of the vertex in the mesh
+     * @throws IOException if the index is malformed or out of range
+     */
+    private int readIndex(Mesh mesh, int base) throws IOException {
+        boolean negative = false;
+        if (pos < limit && buffer.get(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        long index = 0;
+        int start = pos;
+        while (pos < limit && isDigit(buffer.get(pos)) && index <= Integer.MAX_VALUE) {
+            index = index * 10 + (buffer.get(pos) - '0');
+            pos++;
+        }
+        if (pos == start) {
+            throw error("Expected a vertex index");
+        }
+        long v = negative ? mesh.getVertexCount() - index : base + index - 1;
+        if (index == 0 || v < base || v >= mesh.getVertexCount()) {
+            throw error("Vertex index " + (negative ? -index : index) + " is out of range");
+        }
+        return (int) v;
+    }
+
+    /**
+     * Reads a decimal number, with an optional sign, fraction, and exponent.
+     * Up to 18 significant digits are kept, which is more than a double
+     * holds, and the result is exact to the last bit whenever the digits and
+     * the power of ten both fit in a double
+     * @return value of the number
+     * @throws IOException if there is no number
+     */
+    private double readNumber() throws IOException {
+        skipSpaces();
+        boolean negative = false;
+        if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos) == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0; // Significant digits in the mantissa
+        int exponent = 0;
+        boolean any = false;
+        boolean fraction = false;
+        while (pos < limit) {
+            byte c = buffer.get(pos);
+            if (isDigit(c)) {
+                if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (fraction) {
+                        exponent--;
+                    }
+                }
+                else if (!fraction) {
+                    exponent++;
+                }
+                any = true;
+            }
+            else if (c == '.' && !fraction) {
+                fraction = true;
+            }
+            else {
+                break;
+            }
+            pos++;
+        }
+        if (!any) {
+            throw error("Expected a number");
+        }
+        if (pos < limit && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+                negativeExponent = buffer.get(pos) == '-';
+                pos++;
+            }
+            int e = 0;
+            while (pos < limit && isDigit(buffer.get(pos))) {
+                e = Math.min(e * 10 + (buffer.get(pos) - '0'), 1000);
+                pos++;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        double value = mantissa;
+        if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+            value = exponent < 0 ? value / POWERS_OF_TEN[-exponent] : value * POWERS_OF_TEN[exponent];
+        }
+        else if (mantissa != 0) {
+            value *= Math.pow(10, exponent);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Skips spaces and tabs
+     */
+    private void skipSpaces() {
+        while (pos < limit && isSpace(buffer.get(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * Skips to the start of the next line
+     */
+    private void skipLine() {
+        while (pos < limit && buffer.get(pos) != '\n') {
+            pos++;
+        }
+        pos++;
+        line++;
+    }
+
+    /**
+     * Creates an exception pointing at the line being read
+     * @param message what is wrong with the line
+     * @return exception to throw
+     */
+    private IOException error(String message) {
+        return new IOException(message + " on line " + line + " of " + filename);
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isEndOfLine(byte c) {
+        return c == '\n' || c == '\r' || c == '#';
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+}
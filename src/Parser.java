@@ -62,12 +62,11 @@ public class Parser {
     DrawingMode drawingMode = DrawingMode.LINE; // Mode of drawing (line or polygon)
 
     int lineNumber; // Current line number when parsing the file
-    Random r = new Random();
 
     public Parser() {
         frame = new Frame();
-        tfm = new EdgeMatrix(4, 4);
-        tfmTemp = new EdgeMatrix(4, 4);
+        tfm = new Matrix(4, 4);
+        tfmTemp = new Matrix(4, 4);
         em = new EdgeMatrix();
         tfm.identity();
         lineNumber = 0;
@@ -178,24 +177,20 @@ public class Parser {
                         String filename = stringStrip(getNextLine(in));
                         frame.clearFrame();
                         if (drawingMode == DrawingMode.POLYGON) {
-                            frame.drawPolygons(em, new Color(r.nextInt(255), r.nextInt(255),
-                                    r.nextInt(255)));
+                            frame.drawPolygons(em, Color.randomRGB());
                         }
                         else {
-                            frame.drawLines(em, new Color(r.nextInt(255), r.nextInt(255),
-                                    r.nextInt(255)));
+                            frame.drawLines(em, Color.randomRGB());
                         }
                         frame.saveImage(filename);
                         break;
                     case 'v':
                         frame.clearFrame();
                         if (drawingMode == DrawingMode.POLYGON) {
-                            frame.drawPolygons(em, new Color(r.nextInt(255), r.nextInt(255),
-                                    r.nextInt(255)));
+                            frame.drawPolygons(em, Color.randomRGB());
                         }
                         else {
-                            frame.drawLines(em, new Color(r.nextInt(255), r.nextInt(255),
-                                    r.nextInt(255)));
+                            frame.drawLines(em, Color.randomRGB());
                         }
                         frame.viewFrame();
                         break;
@@ -0,0 +1,688 @@
+import java.util.*;
+
+/**
+ * Draws lines and triangles into the pixel and depth buffers of a Frame.
+ * Every write is limited to a clipping rectangle, which lets several
+ * rasterizers share one frame and work on separate tiles at the same time
+ * without locking, since no two of them ever touch the same pixel.
+ */
+class Rasterizer {
+
+    private final int[] frame;
+    private final double[] zBuffer;
+    private final HiZBuffer hiZ;
+    private final int width;
+    private final int height;
+    final int minX, minY, maxX, maxY; // Clipping rectangle, inclusive, origin at the bottom left
+    private boolean[] visibleBlocks = new boolean[0]; // Whether each block along a row of the current triangle might show
+    private boolean[] coveredBlocks = new boolean[0]; // Whether the current triangle covers each block along a row
+    private final double[] scratch = new double[3]; // Color of the pixel being lit
+
+    private static final int SUBPIXEL_BITS = 8; // Fractional bits of the fixed-point vertex coordinates
+    private static final long SUBPIXEL = 1 << SUBPIXEL_BITS;
+    private static final long HALF_PIXEL = SUBPIXEL / 2; // Offset of a pixel's center from its corner
+    private static final double MAX_COORDINATE = 1 << 20; // Largest coordinate whose edge functions still fit in a long
+    private static final int POINT_SIZE = 4; // Values per vertex in a vertex buffer
+    private static final int ATTRIBUTE_SIZE = 3; // Values per vertex in an attribute buffer
+    private static final int MAX_LINE_COORDINATE = 1 << 24; // Largest coordinate whose line decision values still fit in a long
+
+    /**
+     * Creates a rasterizer for the given buffers that may only draw inside
+     * the given rectangle
+     * @param _frame packed pixels of the frame, stored row by row from the top
+     * @param _zBuffer depth of each pixel, indexed the same as _frame
+     * @param _hiZ coarse depth buffer over _zBuffer
+     * @param _width width of the frame in pixels
+     * @param _height height of the frame in pixels
+     * @param _minX leftmost column that may be drawn
+     * @param _minY bottommost row that may be drawn
+     * @param _maxX rightmost column that may be drawn
+     * @param _maxY topmost row that may be drawn
+     */
+    Rasterizer(int[] _frame, double[] _zBuffer, HiZBuffer _hiZ, int _width, int _height,
+            int _minX, int _minY, int _maxX, int _maxY) {
+        frame = _frame;
+        zBuffer = _zBuffer;
+        hiZ = _hiZ;
+        width = _width;
+        height = _height;
+        minX = _minX;
+        minY = _minY;
+        maxX = _maxX;
+        maxY = _maxY;
+    }
+
+    /**
+     * Plots a point given its coordinates and packed RGB color if it lies in
+     * the clipping rectangle and in front of what is already there. Origin is
+     * at the bottom left
+     * @param x x-coordinate of point
+     * @param y y-coordinate of point
+     * @param z0 z-coordinate of point
+     * @param rgb packed color of the point
+     */
+    void plot(int x, int y, double z0, int rgb) {
+        if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+            int index = (height - 1 - y) * width + x;
+            if (z0 > zBuffer[index]) {
+                zBuffer[index] = z0;
+                frame[index] = rgb;
+                hiZ.markDirty(x >> HiZBuffer.BLOCK_BITS, y >> HiZBuffer.BLOCK_BITS);
+            }
+        }
+    }
+
+    /**
+     * Draws the triangle with the given vertices, either filling it in or
+     * outlining it
+     * @param m buffer holding the vertices
+     * @param p0 offset of the first vertex in the buffer
+     * @param p1 offset of the second vertex in the buffer
+     * @param p2 offset of the third vertex in the buffer
+     * @param c packed color of the triangle
+     * @param fill whether to fill the triangle or only draw its edges
+     */
+    void drawTriangle(double[] m, int p0, int p1, int p2, int c, boolean fill) {
+        if (fill) {
+            fillTriangle(m, p0, p1, p2, c);
+        }
+        else {
+            drawLine((int) m[p0], (int) m[p0 + 1], m[p0 + 2], (int) m[p1], (int) m[p1 + 1], m[p1 + 2], c);
+            drawLine((int) m[p1], (int) m[p1 + 1], m[p1 + 2], (int) m[p2], (int) m[p2 + 1], m[p2 + 2], c);
+            drawLine((int) m[p2], (int) m[p2 + 1], m[p2 + 2], (int) m[p0], (int) m[p0 + 1], m[p0 + 2], c);
+        }
+    }
+
+    /**
+     * Fills in a triangle using edge functions. The vertices are snapped to
+     * fixed point, and every pixel in the triangle's bounding box (clipped to
+     * the clipping rectangle) whose center is inside all three edges is
+     * drawn. The edge functions step by whole integers from pixel to pixel,
+     * and pixels on an edge belong to the triangle only if it is a top or a
+     * left edge, so triangles sharing an edge never both draw it. Depth is
+     * interpolated across the plane of the triangle.
+     * @param m buffer holding the vertices
+     * @param p0 offset of one vertex of the polygon
+     * @param p1 offset of one vertex of the polygon
+     * @param p2 offset of one vertex of the polygon
+     * @param c packed color of the triangle
+     */
+    void fillTriangle(double[] m, int p0, int p1, int p2, int c) {
+        fillTriangle(m, p0, p1, p2, c, null, null);
+    }
+
+    /**
+     * Fills in a triangle whose color changes across it. Each vertex has
+     * three attributes, stored at the same index as the vertex in an
+     * attribute buffer, which are interpolated across the plane of the
+     * triangle like depth. Without lighting the attributes are the red,
+     * green and blue values of each vertex (Gouraud shading). With lighting
+     * they are the normal of each vertex, and every pixel is lit with its
+     * own normal (Phong shading)
+     * @param m buffer holding the vertices
+     * @param p0 offset of one vertex of the polygon
+     * @param p1 offset of one vertex of the polygon
+     * @param p2 offset of one vertex of the polygon
+     * @param attributes three values for each vertex in the vertex buffer
+     * @param lighting lights to light each pixel with, or null if the
+     *        attributes are colors
+     */
+    void shadeTriangle(double[] m, int p0, int p1, int p2, double[] attributes, Lighting lighting) {
+        fillTriangle(m, p0, p1, p2, 0, attributes, lighting);
+    }
+
+    /**
+     * Fills in a triangle in a single color or with interpolated attributes
+     * @param m buffer holding the vertices
+     * @param p0 offset of one vertex of the polygon
+     * @param p1 offset of one vertex of the polygon
+     * @param p2 offset of one vertex of the polygon
+     * @param c packed color of the triangle, if there are no attributes
+     * @param attributes three values for each vertex in the vertex buffer,
+     *        or null to fill with a single color
+     * @param lighting lights to light each pixel with, or null if the
+     *        attributes are colors
+     */
+    private void fillTriangle(double[] m, int p0, int p1, int p2, int c, double[] attributes, Lighting lighting) {
+        if (!(Math.abs(m[p0]) <= MAX_COORDINATE && Math.abs(m[p0 + 1]) <= MAX_COORDINATE
+                && Math.abs(m[p1]) <= MAX_COORDINATE && Math.abs(m[p1 + 1]) <= MAX_COORDINATE
+                && Math.abs(m[p2]) <= MAX_COORDINATE && Math.abs(m[p2 + 1]) <= MAX_COORDINATE)) {
+            return; // Too far off the frame for the edge functions to fit in a long
+        }
+        long x0 = Math.round(m[p0] * SUBPIXEL), y0 = Math.round(m[p0 + 1] * SUBPIXEL);
+        long x1 = Math.round(m[p1] * SUBPIXEL), y1 = Math.round(m[p1 + 1] * SUBPIXEL);
+        long x2 = Math.round(m[p2] * SUBPIXEL), y2 = Math.round(m[p2 + 1] * SUBPIXEL);
+        double z0 = m[p0 + 2], z1 = m[p1 + 2], z2 = m[p2 + 2];
+        long area = (x1 - x0) * (y2 - y0) - (y1 - y0) * (x2 - x0);
+        if (area == 0) {
+            return;
+        }
+        if (area < 0) { // Makes the vertices go counterclockwise
+            long temp;
+            temp = x1; x1 = x2; x2 = temp;
+            temp = y1; y1 = y2; y2 = temp;
+            double tempZ = z1; z1 = z2; z2 = tempZ;
+            int tempP = p1; p1 = p2; p2 = tempP;
+            area = -area;
+        }
+
+        // Pixels whose centers lie in the bounding box, clipped
+        int left = Math.max(minX, (int) Math.ceil((Math.min(x0, Math.min(x1, x2)) - HALF_PIXEL) / (double) SUBPIXEL));
+        int right = Math.min(maxX, (int) Math.floor((Math.max(x0, Math.max(x1, x2)) - HALF_PIXEL) / (double) SUBPIXEL));
+        int bottom = Math.max(minY, (int) Math.ceil((Math.min(y0, Math.min(y1, y2)) - HALF_PIXEL) / (double) SUBPIXEL));
+        int top = Math.min(maxY, (int) Math.floor((Math.max(y0, Math.max(y1, y2)) - HALF_PIXEL) / (double) SUBPIXEL));
+        if (left > right || bottom > top) {
+            return;
+        }
+
+        // Each edge function is A * (x - ax) + B * (y - ay) for the edge
+        // from a to b, and is positive to the left of the edge. Edge i is
+        // the one opposite vertex i
+        long a0 = y1 - y2, b0 = x2 - x1;
+        long a1 = y2 - y0, b1 = x0 - x2;
+        long a2 = y0 - y1, b2 = x1 - x0;
+        long sx = (long) left * SUBPIXEL + HALF_PIXEL;
+        long sy = (long) bottom * SUBPIXEL + HALF_PIXEL;
+        long e0 = a0 * (sx - x1) + b0 * (sy - y1);
+        long e1 = a1 * (sx - x2) + b1 * (sy - y2);
+        long e2 = a2 * (sx - x0) + b2 * (sy - y0);
+
+        // Depth at the first pixel center and how it changes per pixel
+        double dzdx = (a0 * z0 + a1 * z1 + a2 * z2) * SUBPIXEL / area;
+        double dzdy = (b0 * z0 + b1 * z1 + b2 * z2) * SUBPIXEL / area;
+        double rowZ = (e0 * z0 + e1 * z1 + e2 * z2) / area;
+
+        // The same for each attribute
+        double rowU = 0, rowV = 0, rowW = 0, dudx = 0, dvdx = 0, dwdx = 0, dudy = 0, dvdy = 0, dwdy = 0;
+        if (attributes != null) {
+            int q0 = p0 / POINT_SIZE * ATTRIBUTE_SIZE;
+            int q1 = p1 / POINT_SIZE * ATTRIBUTE_SIZE;
+            int q2 = p2 / POINT_SIZE * ATTRIBUTE_SIZE;
+            double u0 = attributes[q0], u1 = attributes[q1], u2 = attributes[q2];
+            double v0 = attributes[q0 + 1], v1 = attributes[q1 + 1], v2 = attributes[q2 + 1];
+            double w0 = attributes[q0 + 2], w1 = attributes[q1 + 2], w2 = attributes[q2 + 2];
+            dudx = (a0 * u0 + a1 * u1 + a2 * u2) * SUBPIXEL / area;
+            dvdx = (a0 * v0 + a1 * v1 + a2 * v2) * SUBPIXEL / area;
+            dwdx = (a0 * w0 + a1 * w1 + a2 * w2) * SUBPIXEL / area;
+            dudy = (b0 * u0 + b1 * u1 + b2 * u2) * SUBPIXEL / area;
+            dvdy = (b0 * v0 + b1 * v1 + b2 * v2) * SUBPIXEL / area;
+            dwdy = (b0 * w0 + b1 * w1 + b2 * w2) * SUBPIXEL / area;
+            rowU = (e0 * u0 + e1 * u1 + e2 * u2) / area;
+            rowV = (e0 * v0 + e1 * v1 + e2 * v2) / area;
+            rowW = (e0 * w0 + e1 * w1 + e2 * w2) / area;
+        }
+
+        // Pixels exactly on an edge are only drawn for top and left edges
+        e0 += isTopLeft(a0, b0) ? 0 : -1;
+        e1 += isTopLeft(a1, b1) ? 0 : -1;
+        e2 += isTopLeft(a2, b2) ? 0 : -1;
+        long stepX0 = a0 * SUBPIXEL, stepX1 = a1 * SUBPIXEL, stepX2 = a2 * SUBPIXEL;
+        long stepY0 = b0 * SUBPIXEL, stepY1 = b1 * SUBPIXEL, stepY2 = b2 * SUBPIXEL;
+
+        // Skips the whole triangle, or the blocks of each row, that are
+        // already covered by something at least as close as its closest point
+        double zMax = Math.max(z0, Math.max(z1, z2));
+        if (hiZ.occludes(left, bottom, right, top, zMax)) {
+            return;
+        }
+        int bx0 = left >> HiZBuffer.BLOCK_BITS;
+        int blocks = (right >> HiZBuffer.BLOCK_BITS) - bx0 + 1;
+        if (visibleBlocks.length < blocks) {
+            visibleBlocks = new boolean[blocks];
+            coveredBlocks = new boolean[blocks];
+        }
+        int blockRow = -1;
+        long startE0 = e0, startE1 = e1, startE2 = e2;
+        double startZ = rowZ;
+
+        for (int y = bottom; y <= top; y++) {
+            int by = y >> HiZBuffer.BLOCK_BITS;
+            if (by != blockRow) {
+                blockRow = by;
+                int cy0 = by << HiZBuffer.BLOCK_BITS;
+                int cy1 = Math.min(cy0 + HiZBuffer.BLOCK_SIZE, height) - 1;
+                for (int b = 0; b < blocks; b++) {
+                    int bx = bx0 + b;
+                    visibleBlocks[b] = hiZ.bound(bx, by) < zMax;
+                    coveredBlocks[b] = false;
+                    if (visibleBlocks[b]) {
+                        // The triangle covers the whole block if it covers
+                        // the centers of its corner pixels, and is then
+                        // nowhere farther than the farthest of them
+                        int cx0 = bx << HiZBuffer.BLOCK_BITS;
+                        int cx1 = Math.min(cx0 + HiZBuffer.BLOCK_SIZE, width) - 1;
+                        boolean covered = true;
+                        double cornerZ = Double.POSITIVE_INFINITY;
+                        for (int corner = 0; corner < 4 && covered; corner++) {
+                            int dx = ((corner & 1) == 0 ? cx0 : cx1) - left;
+                            int dy = ((corner & 2) == 0 ? cy0 : cy1) - bottom;
+                            covered = (startE0 + stepX0 * dx + stepY0 * dy
+                                    | startE1 + stepX1 * dx + stepY1 * dy
+                                    | startE2 + stepX2 * dx + stepY2 * dy) >= 0;
+                            cornerZ = Math.min(cornerZ, startZ + dzdx * dx + dzdy * dy);
+                        }
+                        if (covered) {
+                            coveredBlocks[b] = true;
+                            hiZ.raise(bx, by, cornerZ);
+                        }
+                    }
+                }
+            }
+            // Pixels where all three edge functions are at least 0, found
+            // exactly from where each edge function changes sign
+            long first = Math.max(spanStart(e0, stepX0), Math.max(spanStart(e1, stepX1), spanStart(e2, stepX2)));
+            long last = Math.min(spanEnd(e0, stepX0), Math.min(spanEnd(e1, stepX1), spanEnd(e2, stepX2)));
+            last = Math.min(last, right - left);
+            if (first <= last) {
+                int row = (height - 1 - y) * width;
+                int x = left + (int) first;
+                int end = left + (int) last;
+                while (x <= end) {
+                    int bx = x >> HiZBuffer.BLOCK_BITS;
+                    int blockEnd = Math.min(end, ((bx + 1) << HiZBuffer.BLOCK_BITS) - 1);
+                    if (!visibleBlocks[bx - bx0]) {
+                        x = blockEnd + 1;
+                        continue;
+                    }
+                    double z = rowZ + dzdx * (x - left); // Found from the row so skipping never changes depths
+                    boolean drawn = false;
+                    if (attributes == null) {
+                        for (int index = row + x; x <= blockEnd; x++, index++, z += dzdx) {
+                            if (z > zBuffer[index]) {
+                                zBuffer[index] = z;
+                                frame[index] = c;
+                                drawn = true;
+                            }
+                        }
+                    }
+                    else {
+                        double u = rowU + dudx * (x - left);
+                        double v = rowV + dvdx * (x - left);
+                        double w = rowW + dwdx * (x - left);
+                        for (int index = row + x; x <= blockEnd; x++, index++, z += dzdx, u += dudx, v += dvdx, w += dwdx) {
+                            if (z > zBuffer[index]) {
+                                zBuffer[index] = z;
+                                frame[index] = lighting == null ? Color.doubleToRGB(u, v, w) : lighting.shade(u, v, w, scratch);
+                                drawn = true;
+                            }
+                        }
+                    }
+                    if (drawn && !coveredBlocks[bx - bx0]) {
+                        hiZ.markDirty(bx, by);
+                    }
+                }
+            }
+            e0 += stepY0;
+            e1 += stepY1;
+            e2 += stepY2;
+            rowZ += dzdy;
+            rowU += dudy;
+            rowV += dvdy;
+            rowW += dwdy;
+        }
+    }
+
+    /**
+     * Finds the first step along a row at which an edge function is at
+     * least 0 and stays that way
+     * @param w value of the edge function at the start of the row
+     * @param step change in the edge function per pixel
+     * @return number of pixels from the start of the row, or
+     *         Long.MAX_VALUE if the edge function is never at least 0
+     */
+    private static long spanStart(long w, long step) {
+        if (w >= 0) {
+            return 0;
+        }
+        return step > 0 ? (-w + step - 1) / step : Long.MAX_VALUE;
+    }
+
+    /**
+     * Finds the last step along a row at which an edge function is at least
+     * 0, given that it is from some point on
+     * @param w value of the edge function at the start of the row
+     * @param step change in the edge function per pixel
+     * @return number of pixels from the start of the row, or
+     *         Long.MAX_VALUE if the edge function never drops below 0
+     */
+    private static long spanEnd(long w, long step) {
+        if (step >= 0) {
+            return Long.MAX_VALUE;
+        }
+        return w >= 0 ? w / -step : -1;
+    }
+
+    /**
+     * Checks whether an edge of a counterclockwise triangle is a top edge
+     * (flat, with the triangle below it) or a left edge (going down, with the
+     * triangle to its right)
+     * @param a change in the edge function per step in x
+     * @param b change in the edge function per step in y
+     * @return true if pixels exactly on the edge belong to the triangle
+     */
+    private static boolean isTopLeft(long a, long b) {
+        return a > 0 || (a == 0 && b < 0);
+    }
+
+    /**
+     * Draws a line between the points with given coordinates using the
+     * given packed RGB color, plotting only the points inside the clipping
+     * rectangle. Origin is at the bottom left. Lines step one pixel at a
+     * time along whichever of x and y changes more, moving one pixel along
+     * the other whenever a midpoint decision value says the line has passed
+     * halfway to the next pixel. Outcodes of the endpoints (Cohen-Sutherland)
+     * skip lines entirely past one edge of the clipping rectangle, and a line
+     * that crosses an edge starts and stops at the first and last steps that
+     * are inside it, which are found directly from the decision value. That
+     * keeps the pixels and depths of a line the same however it is clipped,
+     * so tiles that each draw part of it leave exactly what one rasterizer
+     * drawing all of it would
+     * @param x0 x-coordinate of the starting point
+     * @param y0 y-coordinate of the starting point
+     * @param z0 z-coordinate of the starting point
+     * @param x1 x-coordinate of the ending point
+     * @param y1 y-coordinate of the ending point
+     * @param z1 z-coordinate of the ending point
+     * @param c packed color of the line to be drawn
+     */
+    void drawLine(int x0, int y0, double z0, int x1, int y1, double z1, int c) {
+        if (x0 > x1) { // Swap points so our loop goes from left to right
+            int temp;
+            temp = x0; x0 = x1; x1 = temp;
+            temp = y0; y0 = y1; y1 = temp;
+            double tempZ = z0; z0 = z1; z1 = tempZ;
+        }
+        if ((outcode(x0, y0) & outcode(x1, y1)) != 0) {
+            return; // Entirely past one edge of the clipping rectangle
+        }
+        if (Math.abs((long) x0) > MAX_LINE_COORDINATE || Math.abs((long) y0) > MAX_LINE_COORDINATE
+                || Math.abs((long) x1) > MAX_LINE_COORDINATE || Math.abs((long) y1) > MAX_LINE_COORDINATE) {
+            drawLongLine(x0, y0, z0, x1, y1, z1, c);
+            return;
+        }
+        long dx = (long) x1 - x0, dy = (long) y1 - y0;
+        if (dx == 0 && dy == 0) {
+            plot(x0, y0, z0, c);
+        }
+        else if (Math.abs(dy) > dx) {
+            drawSteepLine(x0, y0, z0, dx, dy, z1, c);
+        }
+        else {
+            drawShallowLine(x0, y0, z0, dx, dy, z1, c);
+        }
+    }
+
+    /**
+     * Draws a line that changes more in x than in y, going right one pixel
+     * per step and writing straight into the row it is on
+     * @param x0 x-coordinate of the left end
+     * @param y0 y-coordinate of the left end
+     * @param z0 z-coordinate of the left end
+     * @param dx change in x along the line, greater than 0
+     * @param dy change in y along the line, no more than dx either way
+     * @param z1 z-coordinate of the right end
+     * @param c packed color of the line
+     */
+    private void drawShallowLine(int x0, int y0, double z0, long dx, long dy, double z1, int c) {
+        int sy = dy < 0 ? -1 : 1;
+        long major = dx, minor = Math.abs(dy);
+        long first = Math.max(0, minX - (long) x0);
+        long last = Math.min(major, maxX - (long) x0);
+        if (sy > 0) {
+            first = Math.max(first, firstStep(minY - (long) y0, major, minor));
+            last = Math.min(last, lastStep(maxY - (long) y0, major, minor));
+        }
+        else {
+            first = Math.max(first, firstStep((long) y0 - maxY, major, minor));
+            last = Math.min(last, lastStep((long) y0 - minY, major, minor));
+        }
+        if (first > last) {
+            return;
+        }
+        long k = minorSteps(first, major, minor);
+        long e = decision(first, k, major, minor);
+        double dz = (z1 - z0) / major;
+        int x = x0 + (int) first, y = y0 + sy * (int) k;
+        int row = (height - 1 - y) * width;
+        int rowStep = -sy * width;
+        for (long i = first; i <= last; i++, x++, e += 2 * minor) {
+            double z = z0 + dz * i;
+            int index = row + x;
+            if (z > zBuffer[index]) {
+                zBuffer[index] = z;
+                frame[index] = c;
+                hiZ.markDirty(x >> HiZBuffer.BLOCK_BITS, y >> HiZBuffer.BLOCK_BITS);
+            }
+            if (e >= 0) {
+                y += sy;
+                row += rowStep;
+                e -= 2 * major;
+            }
+        }
+    }
+
+    /**
+     * Draws a line that changes more in y than in x, going up or down one
+     * row per step and moving right along it
+     * @param x0 x-coordinate of the left end
+     * @param y0 y-coordinate of the left end
+     * @param z0 z-coordinate of the left end
+     * @param dx change in x along the line, at least 0
+     * @param dy change in y along the line, more than dx either way
+     * @param z1 z-coordinate of the right end
+     * @param c packed color of the line
+     */
+    private void drawSteepLine(int x0, int y0, double z0, long dx, long dy, double z1, int c) {
+        int sy = dy < 0 ? -1 : 1;
+        long major = Math.abs(dy), minor = dx;
+        long first = Math.max(0, firstStep(minX - (long) x0, major, minor));
+        long last = Math.min(major, lastStep(maxX - (long) x0, major, minor));
+        if (sy > 0) {
+            first = Math.max(first, minY - (long) y0);
+            last = Math.min(last, maxY - (long) y0);
+        }
+        else {
+            first = Math.max(first, (long) y0 - maxY);
+            last = Math.min(last, (long) y0 - minY);
+        }
+        if (first > last) {
+            return;
+        }
+        long k = minorSteps(first, major, minor);
+        long e = decision(first, k, major, minor);
+        double dz = (z1 - z0) / major;
+        int x = x0 + (int) k, y = y0 + sy * (int) first;
+        int row = (height - 1 - y) * width;
+        int rowStep = -sy * width;
+        for (long i = first; i <= last; i++, y += sy, row += rowStep, e += 2 * minor) {
+            double z = z0 + dz * i;
+            int index = row + x;
+            if (z > zBuffer[index]) {
+                zBuffer[index] = z;
+                frame[index] = c;
+                hiZ.markDirty(x >> HiZBuffer.BLOCK_BITS, y >> HiZBuffer.BLOCK_BITS);
+            }
+            if (e >= 0) {
+                x++;
+                e -= 2 * major;
+            }
+        }
+    }
+
+    /**
+     * Finds how many steps along the minor axis a line has taken after a
+     * number of steps along its major axis. The line moves along the minor
+     * axis once it is more than halfway to the next pixel, which puts it
+     * round(i * minor / major) pixels along, rounding halves down
+     * @param i number of steps along the major axis
+     * @param major length of the line along its major axis
+     * @param minor length of the line along its minor axis
+     * @return number of steps along the minor axis
+     */
+    private static long minorSteps(long i, long major, long minor) {
+        return floorDiv(2 * minor * i + major - 1, 2 * major);
+    }
+
+    /**
+     * Finds the decision value of a line at a step, which is at least 0 when
+     * the line moves along the minor axis after that step
+     * @param i number of steps along the major axis
+     * @param k number of steps along the minor axis at step i
+     * @param major length of the line along its major axis
+     * @param minor length of the line along its minor axis
+     * @return decision value at step i
+     */
+    private static long decision(long i, long k, long major, long minor) {
+        return 2 * minor * (i + 1) + major - 1 - 2 * major * (k + 1);
+    }
+
+    /**
+     * Finds the first step along the major axis at which a line has taken
+     * at least a number of steps along its minor axis
+     * @param k number of steps along the minor axis
+     * @param major length of the line along its major axis
+     * @param minor length of the line along its minor axis
+     * @return first step, which is more than major if there is none
+     */
+    private static long firstStep(long k, long major, long minor) {
+        if (k <= 0) {
+            return 0;
+        }
+        if (minor == 0) {
+            return major + 1;
+        }
+        return -floorDiv(-(2 * major * k - major + 1), 2 * minor);
+    }
+
+    /**
+     * Finds the last step along the major axis at which a line has taken at
+     * most a number of steps along its minor axis
+     * @param k number of steps along the minor axis
+     * @param major length of the line along its major axis
+     * @param minor length of the line along its minor axis
+     * @return last step, which is -1 if there is none
+     */
+    private static long lastStep(long k, long major, long minor) {
+        if (k < 0) {
+            return -1;
+        }
+        if (minor == 0) {
+            return major;
+        }
+        return floorDiv(2 * major * k + major, 2 * minor);
+    }
+
+    /**
+     * Divides and rounds towards negative infinity
+     * @param a dividend
+     * @param b divisor, greater than 0
+     * @return a / b rounded down
+     */
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return a % b < 0 ? q - 1 : q;
+    }
+
+    /**
+     * Works out which edges of the clipping rectangle a point is past
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @return 1 if it is to the left, 2 if to the right, plus 4 if below,
+     *         8 if above, or 0 if it is inside
+     */
+    private int outcode(int x, int y) {
+        int code = 0;
+        if (x < minX) {
+            code |= 1;
+        }
+        else if (x > maxX) {
+            code |= 2;
+        }
+        if (y < minY) {
+            code |= 4;
+        }
+        else if (y > maxY) {
+            code |= 8;
+        }
+        return code;
+    }
+
+    /**
+     * Draws a line with an end so far off the frame that its decision values
+     * could overflow. The line is first cut with the Cohen-Sutherland
+     * algorithm to the square within MAX_LINE_COORDINATE of the origin, which
+     * is the same for every rasterizer on a frame, so tiles still agree on
+     * its pixels
+     * @param x0 x-coordinate of the starting point
+     * @param y0 y-coordinate of the starting point
+     * @param z0 z-coordinate of the starting point
+     * @param x1 x-coordinate of the ending point
+     * @param y1 y-coordinate of the ending point
+     * @param z1 z-coordinate of the ending point
+     * @param c packed color of the line to be drawn
+     */
+    private void drawLongLine(double x0, double y0, double z0, double x1, double y1, double z1, int c) {
+        double limit = MAX_LINE_COORDINATE;
+        int code0 = limitOutcode(x0, y0), code1 = limitOutcode(x1, y1);
+        while ((code0 | code1) != 0) {
+            if ((code0 & code1) != 0) {
+                return;
+            }
+            int code = code0 != 0 ? code0 : code1;
+            double t;
+            if ((code & 1) != 0) {
+                t = (-limit - x0) / (x1 - x0);
+            }
+            else if ((code & 2) != 0) {
+                t = (limit - x0) / (x1 - x0);
+            }
+            else if ((code & 4) != 0) {
+                t = (-limit - y0) / (y1 - y0);
+            }
+            else {
+                t = (limit - y0) / (y1 - y0);
+            }
+            double x = x0 + (x1 - x0) * t, y = y0 + (y1 - y0) * t, z = z0 + (z1 - z0) * t;
+            if ((code & 3) != 0) {
+                x = (code & 1) != 0 ? -limit : limit; // Exactly on the edge so the point is never cut twice
+            }
+            else {
+                y = (code & 4) != 0 ? -limit : limit;
+            }
+            if (code == code0) {
+                x0 = x; y0 = y; z0 = z;
+                code0 = limitOutcode(x0, y0);
+            }
+            else {
+                x1 = x; y1 = y; z1 = z;
+                code1 = limitOutcode(x1, y1);
+            }
+        }
+        drawLine((int) Math.round(x0), (int) Math.round(y0), z0, (int) Math.round(x1), (int) Math.round(y1), z1, c);
+    }
+
+    /**
+     * Works out which edges of the square within MAX_LINE_COORDINATE of the
+     * origin a point is past
+     * @param x x-coordinate of the point
+     * @param y y-coordinate of the point
+     * @return outcode of the point, laid out like outcode
+     */
+    private static int limitOutcode(double x, double y) {
+        int code = 0;
+        if (x < -MAX_LINE_COORDINATE) {
+            code |= 1;
+        }
+        else if (x > MAX_LINE_COORDINATE) {
+            code |= 2;
+        }
+        if (y < -MAX_LINE_COORDINATE) {
+            code |= 4;
+        }
+        else if (y > MAX_LINE_COORDINATE) {
+            code |= 8;
+        }
+        return code;
+    }
+
+}
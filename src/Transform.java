@@ -0,0 +1,278 @@
+import java.util.*;
+
+/**
+ * A 4x4 affine transformation matrix whose bottom row is always 0 0 0 1.
+ * Points are treated as column vectors, so composing a transformation onto
+ * this one (this = this * t) makes it apply to points before anything that is
+ * already in this transform, which is how the origin stack in MdlReader works.
+ * Every operation works in place so the hot path never allocates.
+ */
+public class Transform {
+
+    private double m00, m01, m02, m03;
+    private double m10, m11, m12, m13;
+    private double m20, m21, m22, m23;
+
+    public Transform() {
+        identity();
+    }
+
+    /**
+     * Turns the transform into the identity transform
+     */
+    public void identity() {
+        m00 = 1; m01 = 0; m02 = 0; m03 = 0;
+        m10 = 0; m11 = 1; m12 = 0; m13 = 0;
+        m20 = 0; m21 = 0; m22 = 1; m23 = 0;
+    }
+
+    /**
+     * Sets the values of this transform to those of the given transform
+     * @param t transform to copy values from
+     */
+    public void set(Transform t) {
+        m00 = t.m00; m01 = t.m01; m02 = t.m02; m03 = t.m03;
+        m10 = t.m10; m11 = t.m11; m12 = t.m12; m13 = t.m13;
+        m20 = t.m20; m21 = t.m21; m22 = t.m22; m23 = t.m23;
+    }
+
+    /**
+     * Returns a copy of the transform with all values intact
+     * @return copy of the transform
+     */
+    public Transform copy() {
+        Transform copy = new Transform();
+        copy.set(this);
+        return copy;
+    }
+
+    /**
+     * Turns the transform into the view transform of a camera at the eye
+     * looking towards the aim, with y pointing up as much as possible. Points
+     * end up relative to the camera, with x to its right, y up, and the
+     * camera looking down the negative z axis
+     * @param eye x, y, z of the camera
+     * @param aim x, y, z of the point the camera looks at
+     */
+    public void lookAt(double[] eye, double[] aim) {
+        double fx = aim[0] - eye[0], fy = aim[1] - eye[1], fz = aim[2] - eye[2]; // Forward
+        double f = Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx /= f; fy /= f; fz /= f;
+        double upX = 0, upY = 1, upZ = 0;
+        if (Math.abs(fy) > 0.999999) { // Looking straight up or down
+            upY = 0;
+            upZ = 1;
+        }
+        double rx = fy * upZ - fz * upY, ry = fz * upX - fx * upZ, rz = fx * upY - fy * upX; // Right, forward x up
+        double r = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        rx /= r; ry /= r; rz /= r;
+        double ux = ry * fz - rz * fy, uy = rz * fx - rx * fz, uz = rx * fy - ry * fx; // Up, right x forward
+        m00 = rx; m01 = ry; m02 = rz; m03 = -(rx * eye[0] + ry * eye[1] + rz * eye[2]);
+        m10 = ux; m11 = uy; m12 = uz; m13 = -(ux * eye[0] + uy * eye[1] + uz * eye[2]);
+        m20 = -fx; m21 = -fy; m22 = -fz; m23 = fx * eye[0] + fy * eye[1] + fz * eye[2];
+    }
+
+    /**
+     * Composes a translation onto the transform
+     * @param x shift in the x-coordinate
+     * @param y shift in the y-coordinate
+     * @param z shift in the z-coordinate
+     */
+    public void translate(double x, double y, double z) {
+        m03 = m00 * x + m01 * y + m02 * z + m03;
+        m13 = m10 * x + m11 * y + m12 * z + m13;
+        m23 = m20 * x + m21 * y + m22 * z + m23;
+    }
+
+    /**
+     * Composes a scale onto the transform
+     * @param x scale in the x-coordinate
+     * @param y scale in the y-coordinate
+     * @param z scale in the z-coordinate
+     */
+    public void scale(double x, double y, double z) {
+        m00 *= x; m01 *= y; m02 *= z;
+        m10 *= x; m11 *= y; m12 *= z;
+        m20 *= x; m21 *= y; m22 *= z;
+    }
+
+    /**
+     * Composes a rotation about the X axis onto the transform, matching
+     * Matrix.makeRotX
+     * @param theta angle to rotate in degrees
+     */
+    public void rotX(double theta) {
+        double c = Math.cos(Math.toRadians(theta));
+        double s = Math.sin(Math.toRadians(theta));
+        double a, b;
+        a = m01; b = m02;
+        m01 = a * c + b * s; m02 = a * -s + b * c;
+        a = m11; b = m12;
+        m11 = a * c + b * s; m12 = a * -s + b * c;
+        a = m21; b = m22;
+        m21 = a * c + b * s; m22 = a * -s + b * c;
+    }
+
+    /**
+     * Composes a rotation about the Y axis onto the transform, matching
+     * Matrix.makeRotY
+     * @param theta angle to rotate in degrees
+     */
+    public void rotY(double theta) {
+        double c = Math.cos(Math.toRadians(theta));
+        double s = Math.sin(Math.toRadians(theta));
+        double a, b;
+        a = m00; b = m02;
+        m00 = a * c + b * s; m02 = a * -s + b * c;
+        a = m10; b = m12;
+        m10 = a * c + b * s; m12 = a * -s + b * c;
+        a = m20; b = m22;
+        m20 = a * c + b * s; m22 = a * -s + b * c;
+    }
+
+    /**
+     * Composes a rotation about the Z axis onto the transform, matching
+     * Matrix.makeRotZ
+     * @param theta angle to rotate in degrees
+     */
+    public void rotZ(double theta) {
+        double c = Math.cos(Math.toRadians(theta));
+        double s = Math.sin(Math.toRadians(theta));
+        double a, b;
+        a = m00; b = m01;
+        m00 = a * c + b * s; m01 = a * -s + b * c;
+        a = m10; b = m11;
+        m10 = a * c + b * s; m11 = a * -s + b * c;
+        a = m20; b = m21;
+        m20 = a * c + b * s; m21 = a * -s + b * c;
+    }
+
+    /**
+     * Composes a rotation about the given axis onto the transform
+     * @param axis 'x', 'y', or 'z'
+     * @param theta angle to rotate in degrees
+     */
+    public void rotate(char axis, double theta) {
+        switch (axis) {
+            case 'x':
+                rotX(theta);
+                break;
+            case 'y':
+                rotY(theta);
+                break;
+            case 'z':
+                rotZ(theta);
+                break;
+        }
+    }
+
+    /**
+     * Multiplies the transform by the given transform and stores the result
+     * in this transform (this = this * t)
+     * @param t transform to multiply by
+     */
+    public void multiply(Transform t) {
+        double a0, a1, a2;
+        a0 = m00; a1 = m01; a2 = m02;
+        m00 = a0 * t.m00 + a1 * t.m10 + a2 * t.m20;
+        m01 = a0 * t.m01 + a1 * t.m11 + a2 * t.m21;
+        m02 = a0 * t.m02 + a1 * t.m12 + a2 * t.m22;
+        m03 = a0 * t.m03 + a1 * t.m13 + a2 * t.m23 + m03;
+        a0 = m10; a1 = m11; a2 = m12;
+        m10 = a0 * t.m00 + a1 * t.m10 + a2 * t.m20;
+        m11 = a0 * t.m01 + a1 * t.m11 + a2 * t.m21;
+        m12 = a0 * t.m02 + a1 * t.m12 + a2 * t.m22;
+        m13 = a0 * t.m03 + a1 * t.m13 + a2 * t.m23 + m13;
+        a0 = m20; a1 = m21; a2 = m22;
+        m20 = a0 * t.m00 + a1 * t.m10 + a2 * t.m20;
+        m21 = a0 * t.m01 + a1 * t.m11 + a2 * t.m21;
+        m22 = a0 * t.m02 + a1 * t.m12 + a2 * t.m22;
+        m23 = a0 * t.m03 + a1 * t.m13 + a2 * t.m23 + m23;
+    }
+
+    /**
+     * Transforms every point in the edge matrix in place in a single pass
+     * @param points edge matrix holding the points to transform
+     */
+    public void apply(EdgeMatrix points) {
+        apply(points.getPoints(), points.getRows());
+    }
+
+    /**
+     * Transforms an axis-aligned box and replaces it with the smallest
+     * axis-aligned box around the result
+     * @param bounds minimum x, y, z followed by maximum x, y, z, changed in
+     *        place
+     */
+    public void applyBounds(double[] bounds) {
+        double cx = (bounds[0] + bounds[3]) / 2, ex = (bounds[3] - bounds[0]) / 2;
+        double cy = (bounds[1] + bounds[4]) / 2, ey = (bounds[4] - bounds[1]) / 2;
+        double cz = (bounds[2] + bounds[5]) / 2, ez = (bounds[5] - bounds[2]) / 2;
+        double x = m00 * cx + m01 * cy + m02 * cz + m03;
+        double y = m10 * cx + m11 * cy + m12 * cz + m13;
+        double z = m20 * cx + m21 * cy + m22 * cz + m23;
+        double dx = Math.abs(m00) * ex + Math.abs(m01) * ey + Math.abs(m02) * ez;
+        double dy = Math.abs(m10) * ex + Math.abs(m11) * ey + Math.abs(m12) * ez;
+        double dz = Math.abs(m20) * ex + Math.abs(m21) * ey + Math.abs(m22) * ez;
+        bounds[0] = x - dx; bounds[1] = y - dy; bounds[2] = z - dz;
+        bounds[3] = x + dx; bounds[4] = y + dy; bounds[5] = z + dz;
+    }
+
+    /**
+     * Transforms a direction, which turns with the transform but is not
+     * moved by it
+     * @param v x, y, z of the direction
+     * @param out array to store the transformed direction in, which may be v
+     */
+    public void applyDirection(double[] v, double[] out) {
+        double x = v[0], y = v[1], z = v[2];
+        out[0] = m00 * x + m01 * y + m02 * z;
+        out[1] = m10 * x + m11 * y + m12 * z;
+        out[2] = m20 * x + m21 * y + m22 * z;
+    }
+
+    /**
+     * Transforms every vertex in the mesh in place, visiting each shared
+     * vertex only once
+     * @param mesh mesh holding the vertices to transform
+     */
+    public void apply(Mesh mesh) {
+        apply(mesh.getVertices(), mesh.getVertexCount());
+    }
+
+    /**
+     * Transforms the first n points of a buffer laid out as x, y, z, w in
+     * place. The homogeneous coordinate is left alone since the transform is
+     * affine
+     * @param data buffer holding the points
+     * @param n number of points to transform
+     */
+    public void apply(double[] data, int n) {
+        double a00 = m00, a01 = m01, a02 = m02, a03 = m03;
+        double a10 = m10, a11 = m11, a12 = m12, a13 = m13;
+        double a20 = m20, a21 = m21, a22 = m22, a23 = m23;
+        int end = n * 4;
+        for (int i = 0; i < end; i += 4) {
+            double x = data[i], y = data[i + 1], z = data[i + 2], w = data[i + 3];
+            data[i] = x * a00 + y * a01 + z * a02 + w * a03;
+            data[i + 1] = x * a10 + y * a11 + z * a12 + w * a13;
+            data[i + 2] = x * a20 + y * a21 + z * a22 + w * a23;
+        }
+    }
+
+    /**
+     * Converts the transform into human-readable format
+     * @return string containing the transform printout
+     */
+    public String toString() {
+        StringBuilder output = new StringBuilder();
+        output.append("{\n");
+        output.append(Arrays.toString(new double[] { m00, m01, m02, m03 }) + ",\n");
+        output.append(Arrays.toString(new double[] { m10, m11, m12, m13 }) + ",\n");
+        output.append(Arrays.toString(new double[] { m20, m21, m22, m23 }) + ",\n");
+        output.append(Arrays.toString(new double[] { 0.0, 0.0, 0.0, 1.0 }) + ",\n");
+        output.append("}\n");
+        return output.toString();
+    }
+
+}
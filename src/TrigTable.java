@@ -0,0 +1,74 @@
+import java.util.concurrent.*;
+
+/**
+ * Precomputed sines and cosines for a full turn split into a fixed number of
+ * steps. Entry i holds the values for an angle of 2 * PI * i / steps, for i
+ * from 0 to steps inclusive, so loops over a closed shape can index the table
+ * directly instead of calling Math.sin and Math.cos. A half turn in n steps is
+ * every entry of the table for 2n steps. Tables are shared between threads and
+ * only ever computed once per step count, and are never freed, so they are
+ * only for fixed step counts such as the ones spheres and tori use.
+ */
+public class TrigTable {
+
+    private static final ConcurrentMap<Integer, TrigTable> tables = new ConcurrentHashMap<Integer, TrigTable>();
+
+    private final double[] cos;
+    private final double[] sin;
+
+    private TrigTable(int steps) {
+        cos = new double[steps + 1];
+        sin = new double[steps + 1];
+        for (int i = 0; i <= steps; i++) {
+            double angle = 2 * Math.PI * i / steps;
+            cos[i] = Math.cos(angle);
+            sin[i] = Math.sin(angle);
+        }
+    }
+
+    /**
+     * Gets the table for a full turn in the given number of steps
+     * @param steps number of steps in a full turn
+     * @return table with steps + 1 entries
+     */
+    public static TrigTable get(int steps) {
+        TrigTable table = tables.get(steps);
+        if (table == null) {
+            table = new TrigTable(steps);
+            TrigTable existing = tables.putIfAbsent(steps, table);
+            if (existing != null) {
+                table = existing;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Converts a step size given as a fraction of the whole into an exact
+     * number of steps
+     * @param stepSize the size of the step to take
+     * @return number of steps, at least 1
+     */
+    public static int steps(double stepSize) {
+        return Math.max(1, (int) Math.round(1 / stepSize));
+    }
+
+    /**
+     * Gets the cosine of 2 * PI * i / steps
+     * @param i step to look up
+     * @return cosine of the angle at the step
+     */
+    public double cos(int i) {
+        return cos[i];
+    }
+
+    /**
+     * Gets the sine of 2 * PI * i / steps
+     * @param i step to look up
+     * @return sine of the angle at the step
+     */
+    public double sin(int i) {
+        return sin[i];
+    }
+
+}